@@ -0,0 +1,121 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+import cp2023.solution.StorageSystemImplementation.PlacementStorage;
+
+/*
+ * Uncontended admission: every thread adds its own component to its own device and removes it again, so transfers
+ * never wait for each other and only the bookkeeping of the system (and its locks in GLOBAL mode) is shared.
+ * Throughput is reported in transfers per microsecond, for 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class AdmissionBenchmark {
+
+    static final int MAX_THREADS = 64;
+
+    @Param({"GLOBAL", "STRIPED"})
+    public ConcurrencyMode mode;
+
+    @Param({"HASH_MAP", "PRIMITIVE"})
+    public PlacementStorage storage;
+
+    private StorageSystem system;
+    private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        for (int device = 0; device < MAX_THREADS; device++) {
+            deviceTotalSlots.put(new DeviceId(device), 1);
+        }
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, new HashMap<>(), mode,
+                ForkJoinPool.commonPool(), storage);
+    }
+
+    // Component and device of one benchmark thread. Transfers are reused, so that they are not measured.
+    @State(Scope.Thread)
+    public static class Worker {
+        NoopTransfer add;
+        NoopTransfer remove;
+
+        @Setup(Level.Trial)
+        public void setupWorker(AdmissionBenchmark benchmark) {
+            int worker = benchmark.nextWorker.getAndIncrement();
+            ComponentId component = new ComponentId(worker);
+            DeviceId device = new DeviceId(worker);
+            add = new NoopTransfer(component, null, device);
+            remove = new NoopTransfer(component, device, null);
+        }
+    }
+
+    private void addAndRemove(Worker worker) throws TransferException {
+        system.execute(worker.add);
+        system.execute(worker.remove);
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(2)
+    public void threads01(Worker worker) throws TransferException {
+        addAndRemove(worker);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(2)
+    public void threads04(Worker worker) throws TransferException {
+        addAndRemove(worker);
+    }
+
+    @Benchmark
+    @Threads(16)
+    @OperationsPerInvocation(2)
+    public void threads16(Worker worker) throws TransferException {
+        addAndRemove(worker);
+    }
+
+    @Benchmark
+    @Threads(MAX_THREADS)
+    @OperationsPerInvocation(2)
+    public void threads64(Worker worker) throws TransferException {
+        addAndRemove(worker);
+    }
+
+}
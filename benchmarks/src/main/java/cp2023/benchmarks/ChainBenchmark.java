@@ -0,0 +1,165 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * End-to-end latency of a chain of MOVE transfers waiting for each other's slots: a row of full devices with one
+ * slot each, where every component waits to move to the previous device of the row. Before each invocation, the
+ * chain is queued with executeAsync(). The invocation moves the component at the head of the row to a spare device
+ * and waits until the whole chain has ended. prepare() of each transfer parks for prepareMicros, like a transfer
+ * waiting for I/O, so pipelined prepare phases overlap. Phases run on virtual threads.
+ * Rows alternate direction, so that the chain of the next invocation starts where the previous one has ended.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ChainBenchmark {
+
+    static final ComponentId HEAD = new ComponentId(0);
+
+    @Param({"GLOBAL", "STRIPED"})
+    public ConcurrencyMode mode;
+
+    @Param({"2", "10", "100", "1000"})
+    public int chainLength;
+
+    @Param({"0", "50"})
+    public int prepareMicros;
+
+    private StorageSystemImplementation system;
+    private ExecutorService phaseExecutor;
+    private DeviceId[] devices; // Row of devices 0..chainLength.
+    private DeviceId spare;
+    private int[] position; // Index of the device of each chained component, components are 1..chainLength.
+    private boolean down; // Components of the next chain move to lower devices.
+    private CompletableFuture<?>[] outcomes;
+
+    // Transfer, whose prepare() parks for prepareMicros.
+    private final class ParkingTransfer implements ComponentTransfer {
+        private final ComponentId component;
+        private final DeviceId source;
+        private final DeviceId destination;
+
+        ParkingTransfer(ComponentId component, DeviceId source, DeviceId destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return component;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination;
+        }
+
+        @Override
+        public void prepare() {
+            if (prepareMicros > 0) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(prepareMicros));
+            }
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        devices = new DeviceId[chainLength + 1];
+        position = new int[chainLength + 1];
+        for (int device = 0; device <= chainLength; device++) {
+            devices[device] = new DeviceId(device);
+            deviceTotalSlots.put(devices[device], 1);
+        }
+        for (int component = 1; component <= chainLength; component++) {
+            position[component] = component;
+            componentPlacement.put(new ComponentId(component), devices[component]);
+        }
+        spare = new DeviceId(chainLength + 1);
+        deviceTotalSlots.put(spare, 1);
+        componentPlacement.put(HEAD, spare);
+        phaseExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, mode, phaseExecutor);
+        down = true;
+        outcomes = new CompletableFuture<?>[chainLength];
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownExecutor() {
+        phaseExecutor.shutdown();
+    }
+
+    // Fills the empty end of the row with the head component and queues the chain towards it.
+    @Setup(Level.Invocation)
+    public void queueChain() throws TransferException {
+        system.execute(new ParkingTransfer(HEAD, spare, headDevice()));
+        for (int component = 1; component <= chainLength; component++) {
+            int from = position[component];
+            int to = down ? from - 1 : from + 1;
+            outcomes[component - 1] = system.executeAsync(
+                    new ParkingTransfer(new ComponentId(component), devices[from], devices[to])).toCompletableFuture();
+            position[component] = to;
+        }
+    }
+
+    private DeviceId headDevice() {
+        return down ? devices[0] : devices[chainLength];
+    }
+
+    @Benchmark
+    public void releaseChain() throws TransferException {
+        system.execute(new ParkingTransfer(HEAD, headDevice(), spare));
+        CompletableFuture.allOf(outcomes).join();
+        down = !down;
+    }
+
+}
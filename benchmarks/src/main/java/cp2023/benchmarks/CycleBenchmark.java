@@ -0,0 +1,99 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * MOVE-heavy workload with long cycles: a ring of full devices with one slot each. In every round, each component
+ * is moved to the next device of the ring. All transfers of a round wait, until the last one closes the cycle through
+ * the whole ring in TransfersGraph, so a round measures cycle detection and release of a cycle of cycleLength
+ * transfers. Transfers are admitted one by one with executeAsync() and their phases run on a fixed thread pool.
+ * Time of one round is reported.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CycleBenchmark {
+
+    static final int PHASE_THREADS = 4;
+
+    @Param({"GLOBAL", "STRIPED"})
+    public ConcurrencyMode mode;
+
+    @Param({"2", "16", "128", "1024"})
+    public int cycleLength;
+
+    private StorageSystemImplementation system;
+    private ExecutorService phaseExecutor;
+    private DeviceId[] devices;
+    private int offset; // Component i is on device (i + offset) % cycleLength.
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        devices = new DeviceId[cycleLength];
+        for (int device = 0; device < cycleLength; device++) {
+            devices[device] = new DeviceId(device);
+            deviceTotalSlots.put(devices[device], 1);
+            componentPlacement.put(new ComponentId(device), devices[device]);
+        }
+        phaseExecutor = Executors.newFixedThreadPool(PHASE_THREADS);
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, mode, phaseExecutor);
+        offset = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownExecutor() {
+        phaseExecutor.shutdown();
+    }
+
+    @Benchmark
+    public void rotateRing() {
+        CompletableFuture<?>[] outcomes = new CompletableFuture<?>[cycleLength];
+        for (int component = 0; component < cycleLength; component++) {
+            NoopTransfer transfer = new NoopTransfer(
+                    new ComponentId(component),
+                    devices[(component + offset) % cycleLength],
+                    devices[(component + offset + 1) % cycleLength]
+            );
+            outcomes[component] = system.executeAsync(transfer).toCompletableFuture();
+        }
+        CompletableFuture.allOf(outcomes).join();
+        offset = (offset + 1) % cycleLength;
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Throughput of resolving random graphs of waiting MOVE transfers with components of different sizes. Every device
+ * is full with one component of each size 1..SIZES. In every round, components of each size are moved along random
+ * cycles of devices, which cover all devices, so each device is full again after the round. Transfers of a round are
+ * admitted one by one with executeAsync() in random order, and all of them wait. Cycles of components of the same
+ * size always fit, but a cycle found first through a new edge often mixes sizes and does not fit, so most transfers
+ * are released only by the resolution of blocked cycles. Rounds and transfers per second are reported.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CycleResolutionBenchmark {
+
+    static final int SIZES = 3;
+    static final int PHASE_THREADS = 4;
+
+    @Param({"GLOBAL", "STRIPED"})
+    public ConcurrencyMode mode;
+
+    @Param({"16", "256"})
+    public int devices;
+
+    private StorageSystemImplementation system;
+    private ExecutorService phaseExecutor;
+    private DeviceId[] deviceIds;
+    private int[][] position; // position[size - 1][i]: device of the i-th component of the size.
+    private Random random;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long transfers;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            transfers = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        HashMap<ComponentId, Integer> componentSizes = new HashMap<>();
+        deviceIds = new DeviceId[devices];
+        position = new int[SIZES][devices];
+        for (int device = 0; device < devices; device++) {
+            deviceIds[device] = new DeviceId(device);
+            deviceTotalSlots.put(deviceIds[device], SIZES * (SIZES + 1) / 2);
+            for (int size = 1; size <= SIZES; size++) {
+                ComponentId component = component(size, device);
+                componentPlacement.put(component, deviceIds[device]);
+                componentSizes.put(component, size);
+                position[size - 1][device] = device;
+            }
+        }
+        phaseExecutor = Executors.newFixedThreadPool(PHASE_THREADS);
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement,
+                componentSizes, mode, phaseExecutor);
+        random = new Random(2023);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownExecutor() {
+        phaseExecutor.shutdown();
+    }
+
+    private ComponentId component(int size, int index) {
+        return new ComponentId((size - 1) * devices + index);
+    }
+
+    @Benchmark
+    public void resolveRound(Counters counters) {
+        ArrayList<NoopTransfer> transfers = new ArrayList<>(SIZES * devices);
+        ArrayList<Integer> order = new ArrayList<>(devices);
+        for (int device = 0; device < devices; device++) {
+            order.add(device);
+        }
+
+        for (int size = 1; size <= SIZES; size++) {
+            // Component on device order[i] moves to order[i + 1], cycles are closed at random points.
+            int[] location = position[size - 1];
+            int[] componentOn = new int[devices];
+            for (int i = 0; i < devices; i++) {
+                componentOn[location[i]] = i;
+            }
+            Collections.shuffle(order, random);
+            int cycleStart = 0;
+            for (int i = 0; i < devices; i++) {
+                boolean closes = i == devices - 1 || (i > cycleStart && random.nextInt(4) == 0);
+                int from = order.get(i);
+                int to = closes ? order.get(cycleStart) : order.get(i + 1);
+                int index = componentOn[from];
+                if (from != to) { // The last device can be left alone in its cycle.
+                    transfers.add(new NoopTransfer(component(size, index), deviceIds[from], deviceIds[to]));
+                    location[index] = to;
+                }
+                if (closes) {
+                    cycleStart = i + 1;
+                }
+            }
+        }
+
+        Collections.shuffle(transfers, random);
+        CompletableFuture<?>[] outcomes = new CompletableFuture<?>[transfers.size()];
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = system.executeAsync(transfers.get(i)).toCompletableFuture();
+        }
+        CompletableFuture.allOf(outcomes).join();
+        counters.transfers += outcomes.length;
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Evacuation of a device: all components are moved from one device to the other and back, either by one
+ * drainDevice() job or by independent transfers - executed one by one with execute(), or all at once with
+ * executeAsync(). Transfers run on the same fixed thread pool. Reports time per evacuated device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class DrainBenchmark {
+
+    static final DeviceId FIRST = new DeviceId(1);
+    static final DeviceId SECOND = new DeviceId(2);
+
+    @Param({"GLOBAL", "STRIPED"})
+    public ConcurrencyMode mode;
+
+    @Param({"256", "4096"})
+    public int components;
+
+    private StorageSystemImplementation system;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        deviceTotalSlots.put(FIRST, components);
+        deviceTotalSlots.put(SECOND, components);
+        for (int i = 0; i < components; i++) {
+            componentPlacement.put(new ComponentId(i), FIRST);
+        }
+        executor = Executors.newFixedThreadPool(4);
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, mode, executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopExecutor() {
+        executor.shutdown();
+    }
+
+    private static DeviceId other(DeviceId device) {
+        return device.equals(FIRST) ? SECOND : FIRST;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void drainDevice() {
+        for (DeviceId device : new DeviceId[] {FIRST, SECOND}) {
+            system.drainDevice(device, (component, source) -> new NoopTransfer(component, source, other(source)))
+                    .completion().toCompletableFuture().join();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void executeEach() throws TransferException {
+        for (DeviceId device : new DeviceId[] {FIRST, SECOND}) {
+            for (int i = 0; i < components; i++) {
+                system.execute(new NoopTransfer(new ComponentId(i), device, other(device)));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void executeAsyncEach() {
+        for (DeviceId device : new DeviceId[] {FIRST, SECOND}) {
+            CompletableFuture<?>[] outcomes = new CompletableFuture<?>[components];
+            for (int i = 0; i < components; i++) {
+                outcomes[i] = system.executeAsync(new NoopTransfer(new ComponentId(i), device, other(device)))
+                        .toCompletableFuture();
+            }
+            CompletableFuture.allOf(outcomes).join();
+        }
+    }
+
+}
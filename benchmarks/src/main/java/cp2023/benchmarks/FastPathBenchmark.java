@@ -0,0 +1,87 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+import cp2023.solution.StorageSystemImplementation.PlacementStorage;
+
+/*
+ * Fast path of execute(): one thread adds a component, moves it to another device and removes it, always with free
+ * space on the destination device, so no transfer is ever queued. Reports time per transfer. Run it with the GC
+ * profiler to see how much each transfer allocates (gc.alloc.rate.norm, in bytes per transfer):
+ *   java -jar benchmarks/target/benchmarks.jar FastPathBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class FastPathBenchmark {
+
+    @Param({"GLOBAL", "STRIPED", "LOCK_FREE"})
+    public ConcurrencyMode mode;
+
+    @Param({"HASH_MAP", "PRIMITIVE"})
+    public PlacementStorage storage;
+
+    private StorageSystem system;
+
+    // Transfers are reused, so that they are not measured.
+    private NoopTransfer add;
+    private NoopTransfer move;
+    private NoopTransfer remove;
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        DeviceId first = new DeviceId(1);
+        DeviceId second = new DeviceId(2);
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        deviceTotalSlots.put(first, 1);
+        deviceTotalSlots.put(second, 1);
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, new HashMap<>(), mode,
+                ForkJoinPool.commonPool(), storage);
+
+        ComponentId component = new ComponentId(1);
+        add = new NoopTransfer(component, null, first);
+        move = new NoopTransfer(component, first, second);
+        remove = new NoopTransfer(component, second, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(3)
+    public void addMoveRemove() throws TransferException {
+        system.execute(add);
+        system.execute(move);
+        system.execute(remove);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Latency distribution of uncontended MOVE transfers: every thread moves its own component back and forth between
+ * its own two devices, which always have free space, so transfers never wait for each other. Only locks (GLOBAL
+ * and STRIPED modes) or the occupancy words of the devices (LOCK_FREE mode) are shared. JMH reports percentiles
+ * of the time of one transfer (p0.50 and p0.99 among them), for 1 and 4 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class FastPathLatencyBenchmark {
+
+    static final int MAX_THREADS = 4;
+
+    @Param({"GLOBAL", "STRIPED", "LOCK_FREE"})
+    public ConcurrencyMode mode;
+
+    private StorageSystem system;
+    private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        for (int worker = 0; worker < MAX_THREADS; worker++) {
+            deviceTotalSlots.put(new DeviceId(2 * worker), 1);
+            deviceTotalSlots.put(new DeviceId(2 * worker + 1), 1);
+            componentPlacement.put(new ComponentId(worker), new DeviceId(2 * worker));
+        }
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, mode,
+                ForkJoinPool.commonPool());
+    }
+
+    // Component and devices of one benchmark thread. Transfers are reused, so that they are not measured.
+    @State(Scope.Thread)
+    public static class Worker {
+        NoopTransfer there;
+        NoopTransfer back;
+        boolean moved;
+
+        @Setup(Level.Trial)
+        public void setupWorker(FastPathLatencyBenchmark benchmark) {
+            int worker = benchmark.nextWorker.getAndIncrement();
+            ComponentId component = new ComponentId(worker);
+            DeviceId first = new DeviceId(2 * worker);
+            DeviceId second = new DeviceId(2 * worker + 1);
+            there = new NoopTransfer(component, first, second);
+            back = new NoopTransfer(component, second, first);
+        }
+    }
+
+    private void move(Worker worker) throws TransferException {
+        system.execute(worker.moved ? worker.back : worker.there);
+        worker.moved = !worker.moved;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1(Worker worker) throws TransferException {
+        move(worker);
+    }
+
+    @Benchmark
+    @Threads(MAX_THREADS)
+    public void threads4(Worker worker) throws TransferException {
+        move(worker);
+    }
+
+}
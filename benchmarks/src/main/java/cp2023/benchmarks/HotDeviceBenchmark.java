@@ -0,0 +1,121 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Hot-device contention: every thread moves its own component between its own device and one hot device, which
+ * has a slot for every thread. All transfers lock the hot device and update its slot counter, so this measures
+ * how the system scales when one DeviceId is contended, for 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class HotDeviceBenchmark {
+
+    static final int MAX_THREADS = 64;
+    static final DeviceId HOT_DEVICE = new DeviceId(MAX_THREADS);
+
+    @Param({"GLOBAL", "STRIPED"})
+    public ConcurrencyMode mode;
+
+    private StorageSystem system;
+    private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        for (int device = 0; device < MAX_THREADS; device++) {
+            deviceTotalSlots.put(new DeviceId(device), 1);
+            componentPlacement.put(new ComponentId(device), new DeviceId(device));
+        }
+        deviceTotalSlots.put(HOT_DEVICE, MAX_THREADS);
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, mode,
+                ForkJoinPool.commonPool());
+    }
+
+    // Component and its own device of one benchmark thread. Transfers are reused, so that they are not measured.
+    @State(Scope.Thread)
+    public static class Worker {
+        NoopTransfer toHotDevice;
+        NoopTransfer fromHotDevice;
+
+        @Setup(Level.Trial)
+        public void setupWorker(HotDeviceBenchmark benchmark) {
+            int worker = benchmark.nextWorker.getAndIncrement();
+            ComponentId component = new ComponentId(worker);
+            DeviceId device = new DeviceId(worker);
+            toHotDevice = new NoopTransfer(component, device, HOT_DEVICE);
+            fromHotDevice = new NoopTransfer(component, HOT_DEVICE, device);
+        }
+    }
+
+    private void moveThroughHotDevice(Worker worker) throws TransferException {
+        system.execute(worker.toHotDevice);
+        system.execute(worker.fromHotDevice);
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(2)
+    public void threads01(Worker worker) throws TransferException {
+        moveThroughHotDevice(worker);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(2)
+    public void threads04(Worker worker) throws TransferException {
+        moveThroughHotDevice(worker);
+    }
+
+    @Benchmark
+    @Threads(16)
+    @OperationsPerInvocation(2)
+    public void threads16(Worker worker) throws TransferException {
+        moveThroughHotDevice(worker);
+    }
+
+    @Benchmark
+    @Threads(MAX_THREADS)
+    @OperationsPerInvocation(2)
+    public void threads64(Worker worker) throws TransferException {
+        moveThroughHotDevice(worker);
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+// Transfer, whose prepare() and perform() do nothing, so that benchmarks measure only the storage system.
+public final class NoopTransfer implements ComponentTransfer {
+    private final ComponentId compId;
+    private final DeviceId srcDevId;
+    private final DeviceId dstDevId;
+
+    public NoopTransfer(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId) {
+        this.compId = compId;
+        this.srcDevId = srcDevId;
+        this.dstDevId = dstDevId;
+    }
+
+    @Override
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    @Override
+    public DeviceId getSourceDeviceId() {
+        return this.srcDevId;
+    }
+
+    @Override
+    public DeviceId getDestinationDeviceId() {
+        return this.dstDevId;
+    }
+
+    @Override
+    public void prepare() {
+    }
+
+    @Override
+    public void perform() {
+    }
+}
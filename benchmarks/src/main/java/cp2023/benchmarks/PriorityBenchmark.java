@@ -0,0 +1,119 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.PrioritizedTransfer;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+import cp2023.solution.TransferPriority;
+
+/*
+ * Latency of a transfer waiting behind a backlog: virtual threads keep moving their components into a hot device
+ * with one slot and back out, so about backlog NORMAL transfers always wait in the queue of the hot device.
+ * The benchmark thread moves its own component into the hot device with the given priority and back out.
+ * Latency distribution (with p0.99 and p0.999) is reported: a NORMAL transfer waits for the whole backlog,
+ * an URGENT one only for the slot to be freed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class PriorityBenchmark {
+
+    static final DeviceId HOT_DEVICE = new DeviceId(0);
+
+    @Param({"128", "1024"})
+    public int backlog;
+
+    @Param({"NORMAL", "URGENT"})
+    public TransferPriority priority;
+
+    private StorageSystem system;
+    private final ArrayList<Thread> movers = new ArrayList<>();
+    private volatile boolean running;
+
+    private ComponentTransfer intoHotDevice;
+    private ComponentTransfer fromHotDevice;
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        // Component i is on its own device i, component 0 belongs to the benchmark thread.
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        deviceTotalSlots.put(HOT_DEVICE, 1);
+        for (int i = 1; i <= backlog + 1; i++) {
+            deviceTotalSlots.put(new DeviceId(i), 1);
+            componentPlacement.put(new ComponentId(i), new DeviceId(i));
+        }
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, ConcurrencyMode.STRIPED,
+                ForkJoinPool.commonPool());
+
+        ComponentId component = new ComponentId(backlog + 1);
+        DeviceId device = new DeviceId(backlog + 1);
+        intoHotDevice = PrioritizedTransfer.of(new NoopTransfer(component, device, HOT_DEVICE), priority);
+        fromHotDevice = new NoopTransfer(component, HOT_DEVICE, device);
+
+        running = true;
+        for (int i = 1; i <= backlog; i++) {
+            NoopTransfer into = new NoopTransfer(new ComponentId(i), new DeviceId(i), HOT_DEVICE);
+            NoopTransfer from = new NoopTransfer(new ComponentId(i), HOT_DEVICE, new DeviceId(i));
+            movers.add(Thread.ofVirtual().start(() -> {
+                try {
+                    while (running) {
+                        system.execute(into);
+                        system.execute(from);
+                    }
+                } catch (TransferException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopMovers() throws InterruptedException {
+        running = false;
+        for (Thread mover : movers) {
+            mover.join();
+        }
+        movers.clear();
+    }
+
+    @Benchmark
+    public void throughHotDevice() throws TransferException {
+        system.execute(intoHotDevice);
+        system.execute(fromHotDevice);
+    }
+
+}
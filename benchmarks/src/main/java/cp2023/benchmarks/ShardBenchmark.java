@@ -0,0 +1,134 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Throughput of MOVE transfers of a sharded storage system with 1 to 8 shards. Each of THREADS threads moves its own
+ * components among the devices of its own block (DEVICES / THREADS devices, which lie within one shard), except for
+ * crossShardPercent of transfers, which go to a random device of another block, usually in another shard. Devices
+ * have room for all components, so transfers never wait and only contention on the shards is measured.
+ * Throughput is reported in transfers per microsecond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ShardBenchmark {
+
+    static final int THREADS = 8;
+    static final int DEVICES = 64;
+    static final int BLOCK = DEVICES / THREADS;
+    static final int COMPONENTS_PER_THREAD = 4;
+
+    @Param({"GLOBAL", "STRIPED"})
+    public ConcurrencyMode mode;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    @Param({"0", "10"})
+    public int crossShardPercent;
+
+    private StorageSystem system;
+    private DeviceId[] devices;
+    private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        devices = new DeviceId[DEVICES];
+        for (int device = 0; device < DEVICES; device++) {
+            devices[device] = new DeviceId(device);
+            deviceTotalSlots.put(devices[device], THREADS * COMPONENTS_PER_THREAD);
+        }
+        for (int worker = 0; worker < THREADS; worker++) {
+            for (int i = 0; i < COMPONENTS_PER_THREAD; i++) {
+                componentPlacement.put(component(worker, i), devices[worker * BLOCK + i % BLOCK]);
+            }
+        }
+        system = StorageSystemFactory.newShardedSystem(deviceTotalSlots, componentPlacement, shards, mode,
+                ForkJoinPool.commonPool());
+    }
+
+    private static ComponentId component(int worker, int index) {
+        return new ComponentId(worker * COMPONENTS_PER_THREAD + index);
+    }
+
+    // Components of one benchmark thread and their devices.
+    @State(Scope.Thread)
+    public static class Worker {
+        int block; // First device of the block of the thread.
+        ComponentId[] components;
+        int[] position;
+        int next;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setupWorker(ShardBenchmark benchmark) {
+            int worker = benchmark.nextWorker.getAndIncrement();
+            block = worker * BLOCK;
+            components = new ComponentId[COMPONENTS_PER_THREAD];
+            position = new int[COMPONENTS_PER_THREAD];
+            for (int i = 0; i < COMPONENTS_PER_THREAD; i++) {
+                components[i] = component(worker, i);
+                position[i] = block + i % BLOCK;
+            }
+            random = new Random(2023 + worker);
+        }
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public void move(Worker worker) throws TransferException {
+        int i = worker.next;
+        worker.next = (i + 1) % COMPONENTS_PER_THREAD;
+        int from = worker.position[i];
+        int to;
+        if (worker.random.nextInt(100) < crossShardPercent) {
+            to = (worker.block + BLOCK + worker.random.nextInt(DEVICES - BLOCK)) % DEVICES;
+        } else {
+            to = worker.block + worker.random.nextInt(BLOCK);
+        }
+        if (to == from) {
+            to = from == worker.block ? worker.block + 1 : worker.block;
+        }
+        system.execute(new NoopTransfer(worker.components[i], devices[from], devices[to]));
+        worker.position[i] = to;
+    }
+
+}
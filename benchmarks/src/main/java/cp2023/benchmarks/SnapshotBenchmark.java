@@ -0,0 +1,144 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.benchmarks;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.PlacementSnapshot;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Throughput of MOVE transfers of WRITERS threads, alone (group "alone") and while one more thread takes snapshots
+ * of the placement of all components in a loop (group "withSnapshots"). Every writer moves its own components among
+ * DEVICES devices, which have room for all components, so transfers never wait. Snapshots should not slow transfers
+ * down more than a thread, which only burns CPU (group "withBusyThread") - on a machine with few cores, sharing
+ * the CPU alone slows them down. Throughput of each method is reported in operations per microsecond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SnapshotBenchmark {
+
+    static final int WRITERS = 3;
+    static final int DEVICES = 16;
+    static final int COMPONENTS_PER_WRITER = 256;
+
+    @Param({"GLOBAL", "STRIPED", "LOCK_FREE"})
+    public ConcurrencyMode mode;
+
+    private StorageSystemImplementation system;
+    private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+    @Setup(Level.Trial)
+    public void setupSystem() {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        for (int device = 0; device < DEVICES; device++) {
+            deviceTotalSlots.put(new DeviceId(device), WRITERS * COMPONENTS_PER_WRITER);
+        }
+        for (int component = 0; component < WRITERS * COMPONENTS_PER_WRITER; component++) {
+            componentPlacement.put(new ComponentId(component), new DeviceId(component % DEVICES));
+        }
+        system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, mode, ForkJoinPool.commonPool());
+    }
+
+    // Components of one writer and their devices.
+    @State(Scope.Thread)
+    public static class Writer {
+        ComponentId[] components;
+        int[] position;
+        int next;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setupWriter(SnapshotBenchmark benchmark) {
+            int worker = benchmark.nextWorker.getAndIncrement() % WRITERS;
+            components = new ComponentId[COMPONENTS_PER_WRITER];
+            position = new int[COMPONENTS_PER_WRITER];
+            for (int i = 0; i < COMPONENTS_PER_WRITER; i++) {
+                int component = worker * COMPONENTS_PER_WRITER + i;
+                components[i] = new ComponentId(component);
+                position[i] = component % DEVICES;
+            }
+            random = new Random(2023 + worker);
+        }
+    }
+
+    private void move(Writer writer) throws TransferException {
+        int i = writer.next;
+        writer.next = (i + 1) % COMPONENTS_PER_WRITER;
+        int from = writer.position[i];
+        int to = (from + 1 + writer.random.nextInt(DEVICES - 1)) % DEVICES;
+        system.execute(new NoopTransfer(writer.components[i], new DeviceId(from), new DeviceId(to)));
+        writer.position[i] = to;
+    }
+
+    @Benchmark
+    @Group("alone")
+    @GroupThreads(WRITERS)
+    public void aloneMove(Writer writer) throws TransferException {
+        move(writer);
+    }
+
+    @Benchmark
+    @Group("withBusyThread")
+    @GroupThreads(WRITERS)
+    public void withBusyThreadMove(Writer writer) throws TransferException {
+        move(writer);
+    }
+
+    @Benchmark
+    @Group("withBusyThread")
+    @GroupThreads(1)
+    public void withBusyThreadSpin() {
+        Blackhole.consumeCPU(10_000);
+    }
+
+    @Benchmark
+    @Group("withSnapshots")
+    @GroupThreads(WRITERS)
+    public void withSnapshotsMove(Writer writer) throws TransferException {
+        move(writer);
+    }
+
+    @Benchmark
+    @Group("withSnapshots")
+    @GroupThreads(1)
+    public PlacementSnapshot withSnapshotsRead() {
+        return system.snapshot();
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.demo;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.HashPlacementTable;
+import cp2023.solution.OffHeapPlacementTable;
+import cp2023.solution.PlacementTable;
+import cp2023.solution.PrimitivePlacementTable;
+import cp2023.solution.StorageSystemImplementation.PlacementStorage;
+
+/*
+ * Compares placement storages of StorageSystemImplementation on a large inventory.
+ *
+ * For every storage, a table with the given number of components spread over the devices is built, then:
+ *  - heap footprint is the growth of used heap after a full GC (initial placement map is not counted),
+ *  - direct memory footprint is the growth of the "direct" buffer pool,
+ *  - lookup latency is the average time of get() of a random component, after a warm-up.
+ * Run with a heap large enough for the HASH_MAP table, e.g. -Xmx4g for 10 million components.
+ *
+ * Usage: PlacementBenchmark [components = 10000000] [devices = 1000] [lookups = 20000000]
+ */
+public final class PlacementBenchmark {
+
+    public static void main(String[] args) {
+        int components = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 20_000_000;
+
+        ArrayList<DeviceId> deviceIds = new ArrayList<>(devices);
+        for (int device = 1; device <= devices; device++) {
+            deviceIds.add(new DeviceId(device));
+        }
+        HashMap<ComponentId, DeviceId> placement = new HashMap<>();
+        for (int component = 0; component < components; component++) {
+            placement.put(new ComponentId(component), deviceIds.get(component % devices));
+        }
+        ComponentId[] queries = new ComponentId[1 << 16];
+        SplittableRandom random = new SplittableRandom(2023);
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new ComponentId(random.nextInt(components));
+        }
+
+        System.out.printf("Components: %d, devices: %d, lookups: %d%n", components, devices, lookups);
+        System.out.printf("%-10s %12s %12s %14s%n", "storage", "heap [MB]", "direct [MB]", "lookup [ns]");
+        for (PlacementStorage storage : PlacementStorage.values()) {
+            long heapBefore = usedHeap();
+            long directBefore = usedDirect();
+            PlacementTable table = newTable(storage, deviceIds, placement);
+            long heap = usedHeap() - heapBefore;
+            long direct = usedDirect() - directBefore;
+
+            lookup(table, queries, lookups); // Warm-up.
+            long start = System.nanoTime();
+            long found = lookup(table, queries, lookups);
+            double latency = (double) (System.nanoTime() - start) / lookups;
+
+            if (found != lookups) {
+                throw new RuntimeException(storage + " lost placement of " + (lookups - found) + " components");
+            }
+            System.out.printf("%-10s %12.1f %12.1f %14.1f%n", storage, heap / 1e6, direct / 1e6, latency);
+        }
+    }
+
+    private static PlacementTable newTable(PlacementStorage storage, ArrayList<DeviceId> devices,
+                                           HashMap<ComponentId, DeviceId> placement) {
+        return switch (storage) {
+            case HASH_MAP -> new HashPlacementTable(placement);
+            case PRIMITIVE -> new PrimitivePlacementTable(devices, placement);
+            case OFF_HEAP -> new OffHeapPlacementTable(devices, placement);
+        };
+    }
+
+    // Returns the number of components placed on some device.
+    private static long lookup(PlacementTable table, ComponentId[] queries, int lookups) {
+        long found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (table.get(queries[i & (queries.length - 1)]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.demo;
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+import cp2023.solution.StorageSystemImplementation.PlacementStorage;
+
+/*
+ * Measures the startup time of StorageSystemFactory.newSystem() - validation of arguments and construction of
+ * the system - for every placement storage, on an inventory with components spread evenly over the devices.
+ * Placement of at least StorageSystemFactory.LARGE_INVENTORY components is validated in parallel.
+ * Run with a heap large enough for the inventory, e.g. -Xmx8g for 10 million components.
+ *
+ * Usage: StartupBenchmark [components = 10000000] [devices = 10000] [runs = 3]
+ */
+public final class StartupBenchmark {
+
+    public static void main(String[] args) {
+        int components = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        for (int device = 0; device < devices; device++) {
+            deviceTotalSlots.put(new DeviceId(device), components / devices + 1);
+        }
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        for (int component = 0; component < components; component++) {
+            componentPlacement.put(new ComponentId(component), new DeviceId(component % devices));
+        }
+
+        System.out.printf("Components: %d, devices: %d, fork-join parallelism: %d%n",
+                components, devices, ForkJoinPool.getCommonPoolParallelism());
+        System.out.printf("%-10s %16s %16s%n", "storage", "first run [ms]", "best run [ms]");
+        for (PlacementStorage storage : PlacementStorage.values()) {
+            long first = 0;
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < runs; run++) {
+                long start = System.nanoTime();
+                StorageSystem system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement,
+                        ConcurrencyMode.STRIPED, ForkJoinPool.commonPool(), storage);
+                long time = System.nanoTime() - start;
+                if (system == null) {
+                    throw new RuntimeException("Storage system was not created.");
+                }
+
+                first = run == 0 ? time : first;
+                best = Math.min(best, time);
+            }
+            System.out.printf("%-10s %16.1f %16.1f%n", storage, first / 1e6, best / 1e6);
+        }
+    }
+
+}
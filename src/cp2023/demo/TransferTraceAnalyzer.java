@@ -0,0 +1,193 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.demo;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/*
+ * Prints the critical path of the slowest transfer in a JFR recording with cp2023 transfer events
+ * (see cp2023.solution.TransferEvents).
+ *
+ * Timeline of the transfer is printed: admission, waiting for its PREPARE latch, prepare(), waiting for its PERFORM
+ * latch and perform(). If the transfer waited, the transfer, which released its longer wait, is printed next,
+ * and so on - until a transfer, which did not wait for anybody, is reached.
+ *
+ * Sample recording:
+ *   java -XX:StartFlightRecording=filename=transfers.jfr -cp target/classes cp2023.demo.TransferBurst
+ *   java -cp target/classes cp2023.demo.TransferTraceAnalyzer transfers.jfr
+ *
+ * Usage: TransferTraceAnalyzer <recording.jfr> [component id]
+ */
+public final class TransferTraceAnalyzer {
+
+    private static final int MAX_DEPTH = 16;
+
+    // Events of one transfer. Phase 0 is PREPARE, phase 1 is PERFORM.
+    private static final class Trace {
+        private final int component;
+        private final String source;
+        private final String destination;
+        private final Instant admitted;
+        private final Duration admission; // Locking devices and starting or queueing the transfer.
+        private final boolean started;
+        private boolean queued;
+        private final Duration[] waits = {Duration.ZERO, Duration.ZERO};
+        private final Instant[] released = new Instant[2];
+        private final String[] causes = new String[2];
+        private final int[] releasedBy = new int[2];
+        private final Instant[] phaseStarts = new Instant[2];
+        private final Duration[] phaseDurations = {Duration.ZERO, Duration.ZERO};
+
+        private Trace(RecordedEvent admission) {
+            this.component = admission.getInt("component");
+            this.source = admission.getString("source");
+            this.destination = admission.getString("destination");
+            this.admitted = admission.getStartTime();
+            this.admission = admission.getDuration();
+            this.started = admission.getBoolean("started");
+        }
+
+        private Instant end() {
+            return phaseStarts[1] == null ? admitted : phaseStarts[1].plus(phaseDurations[1]);
+        }
+
+        private Duration total() {
+            return Duration.between(admitted, end());
+        }
+
+        private void add(RecordedEvent event) {
+            String name = event.getEventType().getName();
+            if (name.equals("cp2023.TransferQueued")) {
+                queued = true;
+                return;
+            }
+            int phase = "PREPARE".equals(event.getString("phase")) ? 0 : 1;
+            switch (name) {
+                case "cp2023.TransferWait" -> waits[phase] = event.getDuration();
+                case "cp2023.TransferPhase" -> {
+                    phaseStarts[phase] = event.getStartTime();
+                    phaseDurations[phase] = event.getDuration();
+                }
+                case "cp2023.LatchReleased" -> {
+                    released[phase] = event.getStartTime();
+                    causes[phase] = event.getString("cause");
+                    releasedBy[phase] = event.getInt("releasedBy");
+                }
+                default -> { }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TransferTraceAnalyzer <recording.jfr> [component id]");
+            System.exit(1);
+        }
+
+        List<RecordedEvent> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(Path.of(args[0]))) {
+            if (event.getEventType().getName().startsWith("cp2023.Transfer")
+                    || event.getEventType().getName().equals("cp2023.LatchReleased")) {
+                events.add(event);
+            }
+        }
+        if (events.isEmpty()) {
+            System.out.println("No transfer events in " + args[0] + ".");
+            return;
+        }
+        events.sort(Comparator.comparing(RecordedEvent::getStartTime));
+        Instant origin = events.get(0).getStartTime();
+
+        // Events of a component belong to the transfer admitted most recently before them.
+        HashMap<Integer, List<Trace>> traces = new HashMap<>();
+        for (RecordedEvent event : events) {
+            int component = event.getInt("component");
+            List<Trace> ofComponent = traces.computeIfAbsent(component, c -> new ArrayList<>());
+            if (event.getEventType().getName().equals("cp2023.TransferAdmitted")) {
+                ofComponent.add(new Trace(event));
+            } else if (!ofComponent.isEmpty()) {
+                ofComponent.get(ofComponent.size() - 1).add(event);
+            }
+        }
+
+        Trace slowest = null;
+        for (List<Trace> ofComponent : traces.values()) {
+            for (Trace trace : ofComponent) {
+                if (args.length > 1 && trace.component != Integer.parseInt(args[1])) {
+                    continue;
+                }
+                if (slowest == null || trace.total().compareTo(slowest.total()) > 0) {
+                    slowest = trace;
+                }
+            }
+        }
+        if (slowest == null) {
+            System.out.println("No transfer of component " + args[1] + " in " + args[0] + ".");
+            return;
+        }
+
+        System.out.println("Critical path of the slowest transfer (times relative to the first event):");
+        Trace trace = slowest;
+        for (int depth = 0; trace != null && depth < MAX_DEPTH; depth++) {
+            print(trace, origin, depth);
+            trace = blocker(trace, traces);
+        }
+    }
+
+    private static void print(Trace trace, Instant origin, int depth) {
+        String indent = "  ".repeat(depth);
+        System.out.printf("%s%s COMP-%d %s -> %s: %s total, admitted at %s in %s%s%n", indent,
+                depth == 0 ? "Transfer" : "<- waited for", trace.component, trace.source, trace.destination,
+                millis(trace.total()), millis(Duration.between(origin, trace.admitted)), millis(trace.admission),
+                trace.started ? " (started right away)" : trace.queued ? " (queued)" : "");
+        String[] phases = {"prepare", "perform"};
+        for (int phase = 0; phase < 2; phase++) {
+            if (trace.released[phase] != null) {
+                System.out.printf("%s  waited %s for %s latch, released at %s by COMP-%d (%s)%n", indent,
+                        millis(trace.waits[phase]), phases[phase].toUpperCase(),
+                        millis(Duration.between(origin, trace.released[phase])),
+                        trace.releasedBy[phase], trace.causes[phase]);
+            }
+            if (trace.phaseStarts[phase] != null) {
+                System.out.printf("%s  %s() %s%n", indent, phases[phase], millis(trace.phaseDurations[phase]));
+            }
+        }
+    }
+
+    // Returns the transfer, which released the longer wait of the given one, or null if it did not wait.
+    private static Trace blocker(Trace trace, HashMap<Integer, List<Trace>> traces) {
+        int phase = trace.waits[1].compareTo(trace.waits[0]) > 0 ? 1 : 0;
+        if (trace.released[phase] == null || trace.waits[phase].isZero()
+                || trace.releasedBy[phase] == trace.component) {
+            return null;
+        }
+
+        Trace blocker = null;
+        for (Trace candidate : traces.getOrDefault(trace.releasedBy[phase], List.of())) {
+            if (!candidate.admitted.isAfter(trace.released[phase])) {
+                blocker = candidate;
+            }
+        }
+        return blocker;
+    }
+
+    private static String millis(Duration duration) {
+        return String.format("%.3f ms", duration.toNanos() / 1e6);
+    }
+
+}
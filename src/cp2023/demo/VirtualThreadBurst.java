@@ -0,0 +1,199 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.demo;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import jdk.jfr.consumer.RecordingStream;
+
+/*
+ * Stress harness for StorageSystemFactory.newVirtualThreadSystem().
+ *
+ * The system consists of many groups of devices, each with the same devices and components as in TransferBurst
+ * (capacities 3, 3 and 5, with three components on every device). In every round, each component is moved to the next
+ * device of its group by its own virtual thread, so full devices form cycles and chains of waiting transfers.
+ * Every perform() sleeps, so that virtual threads have to unmount while transfers are in progress.
+ *
+ * Pinning is detected with JFR jdk.VirtualThreadPinned events. Carrier utilization is estimated as the CPU time
+ * of the process divided by the wall time available to all carrier threads.
+ *
+ * Usage: VirtualThreadBurst [transfers = 1000000] [groups = 1000] [perform duration in ms = 1]
+ */
+public final class VirtualThreadBurst {
+
+    private static final int DEVICES_IN_GROUP = 3;
+    private static final int[] DEVICE_CAPACITIES = {3, 3, 5};
+    private static final int COMPONENTS_IN_GROUP = 9;
+
+    public static void main(String[] args) throws InterruptedException {
+        int transfers = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long duration = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        int[] location = new int[groups * COMPONENTS_IN_GROUP]; // Device of each component within its group.
+        StorageSystem system = setupSystem(groups, location);
+        int rounds = (transfers + location.length - 1) / location.length;
+
+        LongAdder pinnedEvents = new LongAdder();
+        AtomicInteger failures = new AtomicInteger();
+        int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                Runtime.getRuntime().availableProcessors());
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+        try (RecordingStream recording = new RecordingStream()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            recording.onEvent("jdk.VirtualThreadPinned", event -> pinnedEvents.increment());
+            recording.startAsync();
+
+            long startCpu = os.getProcessCpuTime();
+            long start = System.nanoTime();
+
+            for (int round = 0; round < rounds; round++) {
+                ArrayList<Thread> users = new ArrayList<>(location.length);
+                for (int component = 0; component < location.length; component++) {
+                    final int moved = component;
+                    users.add(Thread.ofVirtual().start(() -> executeMove(system, moved, location, duration, failures)));
+                }
+                for (Thread user : users) {
+                    user.join();
+                }
+                for (int component = 0; component < location.length; component++) {
+                    location[component] = (location[component] + 1) % DEVICES_IN_GROUP;
+                }
+            }
+
+            long wall = System.nanoTime() - start;
+            long cpu = os.getProcessCpuTime() - startCpu;
+            recording.stop();
+
+            long executed = (long) rounds * location.length;
+            System.out.println("Transfers: " + executed + " in " + rounds + " rounds of " + location.length +
+                    " virtual threads.");
+            System.out.printf("Time: %.3f s, throughput: %.0f transfers/s%n",
+                    wall / 1e9, executed / (wall / 1e9));
+            System.out.printf("Carrier threads: %d, utilization: %.1f%%%n",
+                    carriers, 100.0 * cpu / ((double) wall * carriers));
+            System.out.println("Pinned virtual threads: " + pinnedEvents.sum());
+            System.out.println("Failed transfers: " + failures.get());
+        }
+    }
+
+    private static StorageSystem setupSystem(int groups, int[] location) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping = new HashMap<>();
+
+        for (int group = 0; group < groups; group++) {
+            for (int device = 0; device < DEVICES_IN_GROUP; device++) {
+                deviceCapacities.put(deviceId(group, device), DEVICE_CAPACITIES[device]);
+            }
+            for (int component = 0; component < COMPONENTS_IN_GROUP; component++) {
+                int device = component / DEVICES_IN_GROUP;
+                location[group * COMPONENTS_IN_GROUP + component] = device;
+                initialComponentMapping.put(new ComponentId(group * COMPONENTS_IN_GROUP + component),
+                        deviceId(group, device));
+            }
+        }
+
+        return StorageSystemFactory.newVirtualThreadSystem(deviceCapacities, initialComponentMapping);
+    }
+
+    private static DeviceId deviceId(int group, int device) {
+        return new DeviceId(group * DEVICES_IN_GROUP + device + 1);
+    }
+
+    private static void executeMove(StorageSystem system, int component, int[] location, long duration,
+                                    AtomicInteger failures) {
+        int group = component / COMPONENTS_IN_GROUP;
+        int source = location[component];
+        MoveTransfer transfer = new MoveTransfer(
+                new ComponentId(component),
+                deviceId(group, source),
+                deviceId(group, (source + 1) % DEVICES_IN_GROUP),
+                duration
+        );
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " + e.toString(), e);
+        }
+        if (!transfer.isDone()) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private final static class MoveTransfer implements ComponentTransfer {
+        private final Thread owningThread;
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final long duration;
+        private volatile boolean prepared;
+        private volatile boolean done;
+
+        public MoveTransfer(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId, long duration) {
+            this.owningThread = Thread.currentThread();
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+            this.duration = duration;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return this.compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return this.srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return this.dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+            if (this.prepared || this.owningThread != Thread.currentThread()) {
+                throw new RuntimeException("Transfer of " + this.compId + " is prepared incorrectly!");
+            }
+            this.prepared = true;
+        }
+
+        @Override
+        public void perform() {
+            if (!this.prepared || this.done || this.owningThread != Thread.currentThread()) {
+                throw new RuntimeException("Transfer of " + this.compId + " is performed incorrectly!");
+            }
+            try {
+                Thread.sleep(this.duration);
+            } catch (InterruptedException e) {
+                throw new RuntimeException("panic: unexpected thread interruption", e);
+            }
+            this.done = true;
+        }
+
+        public boolean isDone() {
+            return this.done;
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import cp2023.base.DeviceId;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Locks guarding the bookkeeping of transfers in StorageSystemImplementation.
+ *
+ * GLOBAL: every device shares one fair mutex, so all operations on the system are serialized.
+ * STRIPED: every device has its own lock. Operations lock only the source and destination devices of a transfer,
+ * always in ascending DeviceId order, so two transfers can never wait for each other's locks.
+ * LOCK_FREE: device locks are the same as in STRIPED mode, but transfers, which do not have to wait, are admitted
+ * without them.
+ * Resolving a cycle of MOVE transfers needs queues of many devices at once, so it takes lockAll(), which excludes
+ * every holder of device locks.
+ */
+public class DeviceLocks {
+
+    private final ConcurrencyMode mode;
+
+    // GLOBAL mode: mutex for operating on a transfer and checking if it is legal.
+    private final Semaphore transferOperation = new Semaphore(1, true);
+
+    // STRIPED and LOCK_FREE modes: device locks are taken under the read lock, lockAll() takes the write lock.
+    private final ReentrantReadWriteLock coordination = new ReentrantReadWriteLock();
+    private final HashMap<DeviceId, ReentrantLock> deviceLocks;
+
+    public DeviceLocks(ConcurrencyMode mode, Collection<DeviceId> devices) {
+        this.mode = mode;
+        this.deviceLocks = new HashMap<>();
+
+        if (mode != ConcurrencyMode.GLOBAL) {
+            for (DeviceId device : devices) {
+                deviceLocks.put(device, new ReentrantLock());
+            }
+        }
+    }
+
+    public ConcurrencyMode getMode() {
+        return mode;
+    }
+
+    // semaphore.acquire() with exception handling.
+    private void acquire_semaphore(Semaphore semaphore) {
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            // Exception thrown per project specification.
+            throw new RuntimeException("panic: unexpected thread interruption");
+        }
+    }
+
+    /*
+     * INPUT: Devices involved in a transfer, any of them can be null.
+     * FUNCTION: Locks given devices in ascending DeviceId order (deadlock-free), or the global mutex in GLOBAL mode.
+     * OUTPUT: No explicit output.
+     */
+    public void lock(DeviceId first, DeviceId second) {
+        if (mode == ConcurrencyMode.GLOBAL) {
+            acquire_semaphore(transferOperation);
+            return;
+        }
+
+        coordination.readLock().lock();
+        if (first == null || (second != null && second.compareTo(first) < 0)) {
+            DeviceId swap = first;
+            first = second;
+            second = swap;
+        }
+        if (first != null) deviceLocks.get(first).lock();
+        if (second != null && !second.equals(first)) deviceLocks.get(second).lock();
+    }
+
+    public void lock(DeviceId device) {
+        lock(device, null);
+    }
+
+    public void unlock(DeviceId first, DeviceId second) {
+        if (mode == ConcurrencyMode.GLOBAL) {
+            transferOperation.release();
+            return;
+        }
+
+        if (first != null) deviceLocks.get(first).unlock();
+        if (second != null && !second.equals(first)) deviceLocks.get(second).unlock();
+        coordination.readLock().unlock();
+    }
+
+    public void unlock(DeviceId device) {
+        unlock(device, null);
+    }
+
+    // Locks all devices at once - used when a cycle of MOVE transfers has to be resolved.
+    public void lockAll() {
+        if (mode == ConcurrencyMode.GLOBAL) {
+            acquire_semaphore(transferOperation);
+        } else {
+            coordination.writeLock().lock();
+        }
+    }
+
+    public void unlockAll() {
+        if (mode == ConcurrencyMode.GLOBAL) {
+            transferOperation.release();
+        } else {
+            coordination.writeLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/*
+ * Occupancy of one device: slots taken by components, by started transfers and by leases, together with the number
+ * of transfers waiting in the queue of the device, packed in one atomic word. In LOCK_FREE mode a transfer claims
+ * its slot with a single compare-and-set of the word, without any lock, if the slot is free and no transfer waits
+ * for the device (see StorageSystemImplementation.startWithoutLocks()).
+ *
+ * Every other change of the word is made under the lock of the device. Slots are never claimed without the lock
+ * while a transfer waits for the device, so free slots of such a device change only under its lock - serving its
+ * queue and resolving cycles of waiting transfers can rely on them.
+ */
+public class DeviceOccupancy {
+
+    // Bits of the word: taken slots in the lower half, waiting transfers in the upper half.
+    private static final int WAITING_SHIFT = 32;
+    private static final long TAKEN_SLOTS = (1L << WAITING_SHIFT) - 1;
+    private static final long ONE_WAITING = 1L << WAITING_SHIFT;
+
+    private static final VarHandle WORD;
+
+    static {
+        try {
+            WORD = MethodHandles.lookup().findVarHandle(DeviceOccupancy.class, "word", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int totalSlots;
+    private volatile long word;
+
+    DeviceOccupancy(int totalSlots, int takenSlots) {
+        this.totalSlots = totalSlots;
+        this.word = takenSlots;
+    }
+
+    public int takenSlots() {
+        return (int) (word & TAKEN_SLOTS);
+    }
+
+    // Returns the number of slots, which are neither taken nor reserved.
+    public int freeSlots() {
+        return totalSlots - takenSlots();
+    }
+
+    public int waitingTransfers() {
+        return (int) (word >>> WAITING_SHIFT);
+    }
+
+    // Claims free slots without any lock, unless a transfer waits for the device. OUTPUT: True if they are claimed.
+    boolean tryTakeUnlocked(int slots) {
+        long current;
+        do {
+            current = word;
+            if (current >>> WAITING_SHIFT != 0 || (current & TAKEN_SLOTS) + slots > totalSlots) {
+                return false;
+            }
+        } while (!WORD.compareAndSet(this, current, current + slots));
+        return true;
+    }
+
+    /*
+     * Frees slots without any lock, unless a transfer waits for the device - then they have to be offered to it
+     * under the lock. OUTPUT: True if they are freed.
+     */
+    boolean tryFreeUnlocked(int slots) {
+        long current;
+        do {
+            current = word;
+            if (current >>> WAITING_SHIFT != 0) {
+                return false;
+            }
+        } while (!WORD.compareAndSet(this, current, current - slots));
+        return true;
+    }
+
+    // Claims free slots, even if transfers wait for the device. Device has to be locked. OUTPUT: True if claimed.
+    boolean tryTake(int slots) {
+        long current;
+        do {
+            current = word;
+            if ((current & TAKEN_SLOTS) + slots > totalSlots) {
+                return false;
+            }
+        } while (!WORD.compareAndSet(this, current, current + slots));
+        return true;
+    }
+
+    // Claims at most the given number of free slots. Device has to be locked. OUTPUT: Number of claimed slots.
+    int takeFree(int slots) {
+        long current;
+        int taken;
+        do {
+            current = word;
+            taken = Math.min(slots, totalSlots - (int) (current & TAKEN_SLOTS));
+        } while (!WORD.compareAndSet(this, current, current + taken));
+        return taken;
+    }
+
+    // Takes slots, which are known to be free. Device has to be locked.
+    void take(int slots) {
+        WORD.getAndAdd(this, (long) slots);
+    }
+
+    // Device has to be locked.
+    void free(int slots) {
+        WORD.getAndAdd(this, (long) -slots);
+    }
+
+    // Transfer starts waiting for the device. Device has to be locked.
+    void addWaiting() {
+        WORD.getAndAdd(this, ONE_WAITING);
+    }
+
+    // Transfer stops waiting for the device. Device has to be locked.
+    void removeWaiting() {
+        WORD.getAndAdd(this, -ONE_WAITING);
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+/*
+ * Queue of transfers waiting for a slot on one device.
+ *
+ * Transfers of each priority class (see TransferPriority) wait in their own FIFO list, and the most urgent class
+ * is served first. To prevent starvation, each class counts how many times in a row its first transfer has been
+ * overtaken by a more urgent one. After AGING_LIMIT overtakes, it is served first, so a transfer of a lower class
+ * gets at least one of every AGING_LIMIT + 1 freed slots, which it fits into.
+ *
+ * Queue is guarded by the lock of its device, except for size(), which can be read at any time. Number of waiting
+ * transfers is kept in the occupancy word of the device, so that no slot is claimed without a lock, while a transfer
+ * waits for the device (see DeviceOccupancy).
+ */
+public class DeviceQueue {
+
+    static final int AGING_LIMIT = 16;
+
+    private static final TransferPriority[] PRIORITIES = TransferPriority.values();
+
+    private final TransferState.TransferList[] classes; // Waiting transfers of each priority, by its ordinal.
+    private final int[] overtaken; // Number of times the first transfer of each class has been overtaken.
+    private final DeviceOccupancy occupancy;
+
+    public DeviceQueue(DeviceOccupancy occupancy) {
+        this.classes = new TransferState.TransferList[PRIORITIES.length];
+        this.overtaken = new int[PRIORITIES.length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new TransferState.TransferList();
+        }
+        this.occupancy = occupancy;
+    }
+
+    public int size() {
+        return occupancy.waitingTransfers();
+    }
+
+    void add(TransferState state) {
+        classes[TransferPriority.of(state.transfer).ordinal()].add(state);
+        occupancy.addWaiting();
+    }
+
+    // Removes the transfer, if it is waiting in the queue.
+    void remove(TransferState state) {
+        if (classes[TransferPriority.of(state.transfer).ordinal()].remove(state)) {
+            occupancy.removeWaiting();
+        }
+    }
+
+    // Returns the ordinal of the class, which is served next, or -1 if the queue is empty.
+    private int nextClass() {
+        int served = -1;
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i].isEmpty()) {
+                continue;
+            }
+            if (served < 0) {
+                served = i;
+            } else if (overtaken[i] >= AGING_LIMIT) {
+                return i; // Less urgent transfer has been overtaken enough times.
+            }
+        }
+        return served;
+    }
+
+    // Returns the first transfer in the order of serving, or null if the queue is empty.
+    TransferState first() {
+        int served = nextClass();
+        return served < 0 ? null : classes[served].first();
+    }
+
+    /*
+     * Returns the transfer after the given one in the order of serving, or null if it is the last one.
+     * Transfers of the class served next come first, then transfers of other classes from the most urgent one.
+     */
+    TransferState next(TransferState state) {
+        int current = TransferPriority.of(state.transfer).ordinal();
+        TransferState next = classes[current].after(state);
+        if (next != null) {
+            return next;
+        }
+
+        int served = nextClass();
+        for (int i = current == served ? 0 : current + 1; i < classes.length; i++) {
+            if (i != served && !classes[i].isEmpty()) {
+                return classes[i].first();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * INPUT: Transfer waiting in the queue, which gets the freed capacity.
+     * FUNCTION: Removes the transfer. First transfers of less urgent classes are overtaken once more, unless their
+     * class is empty. Count of its own class starts again only if it is the first transfer of the class - otherwise
+     * the first one has been overtaken by a transfer, which fits into the freed slots, while it does not.
+     * OUTPUT: None.
+     */
+    void serve(TransferState state) {
+        int served = TransferPriority.of(state.transfer).ordinal();
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i].isEmpty()) {
+                overtaken[i] = 0;
+            } else if (i > served) {
+                overtaken[i]++;
+            }
+        }
+        if (classes[served].first() == state) {
+            overtaken[served] = 0;
+        }
+        classes[served].remove(state);
+        occupancy.removeWaiting();
+    }
+
+}
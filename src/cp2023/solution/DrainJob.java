@@ -0,0 +1,112 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+
+/*
+ * Progress of the evacuation of a device - see StorageSystemImplementation.drainDevice().
+ * Job has a transfer for each component found on the device, when the job was created. Transfer either ends its
+ * perform phase or fails, if it is not legal (e.g. its component has been transferred by someone else meanwhile).
+ * Transfer is abandoned, if the policy throws an exception (or returns null) instead of planning it, or if one of
+ * its phases throws an exception - then the job completes exceptionally with the first such exception.
+ */
+public class DrainJob {
+
+    private final DeviceId device;
+    private final int total;
+    private final AtomicInteger completed; // Transfers, which have ended their perform phase.
+    private final AtomicInteger finished; // Transfers, which have ended their perform phase or failed.
+    private final ConcurrentLinkedQueue<TransferException> failures;
+    private final AtomicReference<Throwable> error; // First exception, with which a transfer was abandoned.
+    private final CompletableFuture<Void> completion;
+
+    DrainJob(DeviceId device, int total) {
+        this.device = device;
+        this.total = total;
+        this.completed = new AtomicInteger();
+        this.finished = new AtomicInteger();
+        this.failures = new ConcurrentLinkedQueue<>();
+        this.error = new AtomicReference<>();
+        this.completion = new CompletableFuture<>();
+        if (total == 0) {
+            completion.complete(null);
+        }
+    }
+
+    // Called, when a transfer of the job has ended its perform phase.
+    void transferEnded() {
+        completed.incrementAndGet();
+        finish();
+    }
+
+    // Called, when a transfer of the job is not legal.
+    void transferFailed(TransferException failure) {
+        failures.add(failure);
+        finish();
+    }
+
+    // Called, when the policy or a phase of a transfer of the job has thrown an exception.
+    void transferAbandoned(Throwable exception) {
+        error.compareAndSet(null, exception instanceof CompletionException ? exception.getCause() : exception);
+        finish();
+    }
+
+    private void finish() {
+        if (finished.incrementAndGet() == total) {
+            Throwable exception = error.get();
+            if (exception == null) {
+                completion.complete(null);
+            } else {
+                completion.completeExceptionally(exception);
+            }
+        }
+    }
+
+    public DeviceId getDevice() {
+        return device;
+    }
+
+    // Returns the number of transfers of the job.
+    public int getTotal() {
+        return total;
+    }
+
+    // Returns the number of transfers of the job, which have ended their perform phase.
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    // Returns exceptions of transfers of the job, which were not legal, in the order of failing.
+    public List<TransferException> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    /*
+     * Returns a stage completed, when all transfers of the job have ended their perform phase, failed or have been
+     * abandoned - exceptionally, if a transfer has been abandoned.
+     */
+    public CompletionStage<Void> completion() {
+        return completion;
+    }
+
+}
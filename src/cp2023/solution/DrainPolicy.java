@@ -0,0 +1,24 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+/*
+ * Plan of evacuation of a drained device - see StorageSystemImplementation.drainDevice().
+ * It is called concurrently by threads of the executor running the drain job.
+ */
+@FunctionalInterface
+public interface DrainPolicy {
+
+    // Returns the transfer, which evacuates the component from the device: a MOVE to another device or a REMOVE.
+    ComponentTransfer evacuate(ComponentId component, DeviceId device);
+
+}
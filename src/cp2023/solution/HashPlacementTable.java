@@ -0,0 +1,60 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+// PlacementTable backed by concurrent hash maps of ComponentId and DeviceId objects.
+public class HashPlacementTable implements PlacementTable {
+
+    private final ConcurrentHashMap<ComponentId, DeviceId> componentPlacement; // Current placement of each component.
+
+    // Set of components, which are being transferred.
+    private final Set<ComponentId> isComponentTransferred;
+
+    public HashPlacementTable(Map<ComponentId, DeviceId> componentPlacement) {
+        this.componentPlacement = new ConcurrentHashMap<>(componentPlacement);
+        this.isComponentTransferred = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public DeviceId get(ComponentId component) {
+        return componentPlacement.get(component);
+    }
+
+    @Override
+    public void put(ComponentId component, DeviceId device) {
+        if (device == null) {
+            componentPlacement.remove(component);
+        } else {
+            componentPlacement.put(component, device);
+        }
+    }
+
+    @Override
+    public boolean claim(ComponentId component) {
+        return isComponentTransferred.add(component);
+    }
+
+    @Override
+    public void release(ComponentId component) {
+        isComponentTransferred.remove(component);
+    }
+
+    @Override
+    public void forEach(BiConsumer<ComponentId, DeviceId> action) {
+        componentPlacement.forEach(action);
+    }
+
+}
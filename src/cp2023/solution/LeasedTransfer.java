@@ -0,0 +1,63 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+/*
+ * Transfer, which takes slots on its destination device from a lease (see SlotLease). If the lease is for another
+ * device, it is closed or does not have enough slots left, the transfer is admitted like any other one.
+ */
+public interface LeasedTransfer extends ComponentTransfer {
+
+    SlotLease getLease();
+
+    /*
+     * Returns the transfer with the given lease. prepare() and perform() are delegated to the transfer.
+     * Priority of a PrioritizedTransfer is kept.
+     */
+    static LeasedTransfer of(ComponentTransfer transfer, SlotLease lease) {
+        if (transfer instanceof PrioritizedTransfer prioritized) {
+            return new PrioritizedLeasedTransfer(transfer, lease, prioritized.getPriority());
+        }
+        return new LeasedTransfer() {
+            @Override
+            public SlotLease getLease() {
+                return lease;
+            }
+
+            @Override
+            public ComponentId getComponentId() {
+                return transfer.getComponentId();
+            }
+
+            @Override
+            public DeviceId getSourceDeviceId() {
+                return transfer.getSourceDeviceId();
+            }
+
+            @Override
+            public DeviceId getDestinationDeviceId() {
+                return transfer.getDestinationDeviceId();
+            }
+
+            @Override
+            public void prepare() {
+                transfer.prepare();
+            }
+
+            @Override
+            public void perform() {
+                transfer.perform();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Map;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/*
+ * PrimitivePlacementTable keeping its entries outside of the heap, so that they neither count towards the heap size
+ * nor are scanned by the garbage collector.
+ *
+ * Slots of each segment are a direct ByteBuffer of fixed-width records:
+ *   bytes 0-3: id of the component,
+ *   bytes 4-7: index of its device and the flag set while the component is being transferred.
+ */
+public class OffHeapPlacementTable extends PrimitivePlacementTable {
+
+    private static final int RECORD_SIZE = 8;
+    private static final int KEY_OFFSET = 0;
+    private static final int VALUE_OFFSET = 4;
+
+    private static final class DirectSlots implements Slots {
+        private final ByteBuffer records;
+
+        private DirectSlots(int capacity) {
+            this.records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        public int capacity() {
+            return records.capacity() / RECORD_SIZE;
+        }
+
+        @Override
+        public int key(int slot) {
+            return records.getInt(slot * RECORD_SIZE + KEY_OFFSET);
+        }
+
+        @Override
+        public int value(int slot) {
+            return records.getInt(slot * RECORD_SIZE + VALUE_OFFSET);
+        }
+
+        @Override
+        public void set(int slot, int key, int value) {
+            records.putInt(slot * RECORD_SIZE + KEY_OFFSET, key);
+            records.putInt(slot * RECORD_SIZE + VALUE_OFFSET, value);
+        }
+
+        @Override
+        public void setValue(int slot, int value) {
+            records.putInt(slot * RECORD_SIZE + VALUE_OFFSET, value);
+        }
+    }
+
+    public OffHeapPlacementTable(Collection<DeviceId> devices, Map<ComponentId, DeviceId> componentPlacement) {
+        super(devices, componentPlacement, DirectSlots::new);
+    }
+
+}
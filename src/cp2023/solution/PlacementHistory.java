@@ -0,0 +1,203 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/*
+ * Changes of the placement table, from which point-in-time snapshots of placement are taken (see PlacementSnapshot)
+ * without blocking transfers and without keeping a second copy of the placement.
+ *
+ * Every change of the placement table is made through put(). While no snapshot is taken, a change only marks its
+ * writer as present in one of CELLS counters (chosen by the component) around the change of the table - nothing is
+ * allocated. Snapshot installs a log of changes first: writers, which see it, append their changes to the log,
+ * before they change the table. Snapshot waits, until writers, which have not seen the log, have left their
+ * counters, copies the table (copy may or may not see concurrent changes) and applies the log to the copy, up to
+ * the last change appended by then. Each component ends up with its last change appended before that moment (or its
+ * value in the table, if there is none), so the copy is the placement at that moment.
+ */
+class PlacementHistory {
+
+    private static final int CELLS = 64; // Power of two.
+    private static final int CELL_STRIDE = 32; // Counters lie in different cache lines.
+
+    private static final VarHandle NEXT;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            NEXT = lookup.findVarHandle(Change.class, "next", Change.class);
+            TAIL = lookup.findVarHandle(Log.class, "tail", Change.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Change of the placement of a component. Device is null, if the component has left its device.
+    private static final class Change {
+        private final ComponentId component;
+        private final DeviceId device;
+        private final long position; // Position in the log, the first change has position 1.
+        private volatile Change next;
+
+        private Change(ComponentId component, DeviceId device, long position) {
+            this.component = component;
+            this.device = device;
+            this.position = position;
+        }
+    }
+
+    /*
+     * Log of changes appended during one snapshot: a linked list, to which changes are linked by a compare-and-set
+     * of the next field of the last change, so appending changes never waits for other appending threads. Tail is
+     * only moved forward, once a change is linked, so that every change before the tail is linked.
+     */
+    private static final class Log {
+        private final Thread reader; // Thread taking the snapshot, unparked when writers leave their counters.
+        private final Change head = new Change(null, null, 0);
+        private volatile Change tail = head;
+
+        private Log(Thread reader) {
+            this.reader = reader;
+        }
+
+        private void append(ComponentId component, DeviceId device) {
+            Change last = tail;
+            while (true) {
+                Change next = last.next;
+                if (next != null) {
+                    last = next;
+                    continue;
+                }
+                Change change = new Change(component, device, last.position + 1);
+                if (NEXT.compareAndSet(last, null, change)) {
+                    moveTail(change);
+                    return;
+                }
+            }
+        }
+
+        private void moveTail(Change change) {
+            Change current = tail;
+            while (current.position < change.position && !TAIL.compareAndSet(this, current, change)) {
+                current = tail;
+            }
+        }
+    }
+
+    private final PlacementTable placement;
+    private final Collection<DeviceId> devices;
+    private final ToIntFunction<ComponentId> sizeOf;
+
+    // Number of writers changing the table in each cell, at positions i * CELL_STRIDE.
+    private final AtomicIntegerArray writers = new AtomicIntegerArray(CELLS * CELL_STRIDE);
+    private volatile Log log; // Log of the snapshot being taken, or null.
+    private final ReentrantLock snapshotLock = new ReentrantLock(); // Snapshots are taken one at a time.
+
+    PlacementHistory(PlacementTable placement, Collection<DeviceId> devices, ToIntFunction<ComponentId> sizeOf) {
+        this.placement = placement;
+        this.devices = devices;
+        this.sizeOf = sizeOf;
+    }
+
+    private static int cell(ComponentId component) {
+        int h = component.hashCode() * 0x9E3779B9;
+        return ((h >>> 16) & (CELLS - 1)) * CELL_STRIDE;
+    }
+
+    // Places the component on the device (or removes its placement, if device is null) in the placement table.
+    void put(ComponentId component, DeviceId device) {
+        int cell = cell(component);
+        writers.getAndIncrement(cell);
+        Log log = this.log;
+        if (log == null) {
+            placement.put(component, device);
+            leave(cell);
+        } else {
+            leave(cell); // Change is logged, so the snapshot does not have to wait for it.
+            log.append(component, device);
+            placement.put(component, device);
+        }
+    }
+
+    // Writer leaves its counter. The last one wakes up the snapshot waiting for the counter.
+    private void leave(int cell) {
+        if (writers.decrementAndGet(cell) == 0) {
+            Log log = this.log;
+            if (log != null) {
+                LockSupport.unpark(log.reader);
+            }
+        }
+    }
+
+    /*
+     * FUNCTION: Takes a snapshot of the placement table, counting slots taken by components on each device.
+     * OUTPUT: Snapshot of the placement at one point in time during the call, after all changes made before it.
+     */
+    PlacementSnapshot snapshot() {
+        snapshotLock.lock();
+        Log log = new Log(Thread.currentThread());
+        this.log = log;
+        try {
+            awaitUnloggedWriters();
+
+            HashMap<ComponentId, DeviceId> components = new HashMap<>();
+            placement.forEach(components::put);
+            Change last = log.tail;
+            for (Change change = log.head; change != last; ) {
+                change = change.next;
+                if (change.device == null) {
+                    components.remove(change.component);
+                } else {
+                    components.put(change.component, change.device);
+                }
+            }
+
+            HashMap<DeviceId, Integer> usedSlots = new HashMap<>();
+            for (DeviceId device : devices) {
+                usedSlots.put(device, 0);
+            }
+            components.forEach((component, device) -> usedSlots.merge(device, sizeOf.applyAsInt(component),
+                    Integer::sum));
+            return new PlacementSnapshot(components, usedSlots);
+        } finally {
+            this.log = null;
+            snapshotLock.unlock();
+        }
+    }
+
+    /*
+     * Waits until every counter has been empty once since the log was installed, so that writers, which have not
+     * seen the log, have changed the table. Writers entering a counter afterwards see the log and leave it right
+     * away. Interrupts do not stop the waiting, but the interrupt status is kept.
+     */
+    private void awaitUnloggedWriters() {
+        boolean interrupted = false;
+        for (int cell = 0; cell < CELLS * CELL_STRIDE; cell += CELL_STRIDE) {
+            while (writers.get(cell) != 0) {
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
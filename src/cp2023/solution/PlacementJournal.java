@@ -0,0 +1,436 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.StorageSystemImplementation.TransferType;
+
+/*
+ * Persistent placement of components: snapshots of the placement and a memory-mapped, append-only journal of changes
+ * made after each snapshot. Files of generation N are "snapshot-N" and "journal-N" in the journal directory.
+ *
+ * Snapshot: capacities of devices and placement of components, written to a temporary file and renamed, so that
+ * a snapshot file is always complete. Snapshot can be taken while transfers are running - the journal of its
+ * generation is started before the placement is read, so every change missed by the snapshot is in the journal
+ * (or in a journal of a newer generation, if the next snapshot has been started).
+ * Snapshot starts with components in transit: components of MOVE transfers, which have left their source device and
+ * have not completed yet, together with their destination.
+ *
+ * Journal: fixed-width records [int type][int component][int device], appended concurrently. Position of a record
+ * is reserved atomically, and its type is written last, so an empty slot (type 0) is a record, which has not been
+ * written. Writes to the mapped file survive a crash of the process; a crash of the whole machine can lose the tail.
+ *
+ * Records are appended before the changed state is visible to other transfers (before the freed slot is handed over
+ * or the component is released), so any prefix of the journal restores a placement, which respects capacities.
+ * Component in transit is restored as not placed on any device: its source slot may already be taken by another
+ * component, while its destination slot may still be taken by a component, which has not left it yet.
+ * Restored system completes its transfer by an ADD transfer to its destination (see StorageSystemFactory).
+ */
+public class PlacementJournal {
+
+    // Types of records. DEPART: component of a MOVE transfer has left its source device for the given destination.
+    private static final int EMPTY = 0;
+    private static final int DEPART = 1;
+    private static final int ADD = 2;
+    private static final int REMOVE = 3;
+    private static final int MOVE = 4;
+
+    private static final int RECORD_SIZE = 12;
+    private static final int TYPE_OFFSET = 0;
+    private static final int COMPONENT_OFFSET = 4;
+    private static final int DEVICE_OFFSET = 8;
+    private static final int RECORDS_PER_CHUNK = 1 << 20; // Journal is mapped in chunks of 12 MB.
+    private static final long CHUNK_SIZE = (long) RECORDS_PER_CHUNK * RECORD_SIZE;
+
+    private static final int SNAPSHOT_MAGIC = 0x43503234;
+    public static final long DEFAULT_SNAPSHOT_EVERY = 1L << 22; // Records of a journal, after which a snapshot is due.
+
+    private static final VarHandle INT_VIEW = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    // Journal of one generation.
+    private static final class Generation {
+        private final FileChannel channel;
+        private final AtomicLong nextRecord = new AtomicLong(0);
+        private final ReentrantLock mapping = new ReentrantLock(); // Guards mapping new chunks and closing.
+        private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+        private boolean closed = false;
+
+        private Generation(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final Path directory;
+    private final long snapshotEvery;
+    private final ReentrantLock snapshotting = new ReentrantLock(); // Only one snapshot is taken at a time.
+    private long lastGeneration; // Number of the newest generation in the directory. Guarded by snapshotting.
+    private volatile Generation current; // Generation records are appended to, null before the first snapshot.
+    // Destination of each component in transit: it has left its source device and has not arrived yet.
+    private final ConcurrentHashMap<ComponentId, DeviceId> inTransit = new ConcurrentHashMap<>();
+
+    public PlacementJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SNAPSHOT_EVERY);
+    }
+
+    public PlacementJournal(Path directory, long snapshotEvery) throws IOException {
+        if (snapshotEvery <= 0) {
+            throw new IllegalArgumentException("Snapshot interval has to be positive.");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.snapshotEvery = snapshotEvery;
+        this.lastGeneration = newestFile(directory); // Files of a newer generation may be left by a crash.
+        this.current = null;
+    }
+
+    /*
+     * INPUT: Journal directory and empty maps to be filled.
+     * FUNCTION: Reads the newest complete snapshot and replays journals of its generation and of all newer generations
+     * (started by snapshots, which have not been completed), in order of generations. Takes time proportional to
+     * the size of the files.
+     * OUTPUT: Capacities of devices, placement of components and destination of components in transit (which are
+     * not placed on any device) are put into given maps.
+     * Throws IOException, if there is no snapshot in the directory or it cannot be read.
+     */
+    public static void restore(Path directory, Map<DeviceId, Integer> deviceTotalSlots,
+                               Map<ComponentId, DeviceId> componentPlacement,
+                               Map<ComponentId, DeviceId> componentsInTransit) throws IOException {
+        long generation = newestGeneration(directory);
+        if (generation == 0) {
+            throw new IOException("No snapshot of placement in " + directory + ".");
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotFile(directory, generation)), 1 << 16))) {
+            if (input.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Corrupted snapshot of generation " + generation + ".");
+            }
+            int devices = input.readInt();
+            for (int i = 0; i < devices; i++) {
+                deviceTotalSlots.put(new DeviceId(input.readInt()), input.readInt());
+            }
+            int inTransit = input.readInt();
+            for (int i = 0; i < inTransit; i++) {
+                componentsInTransit.put(new ComponentId(input.readInt()), new DeviceId(input.readInt()));
+            }
+            while (true) {
+                int component;
+                try {
+                    component = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                componentPlacement.put(new ComponentId(component), new DeviceId(input.readInt()));
+            }
+        }
+        // Placement may have been read after such a component arrived - changes made since then are in the journals.
+        componentPlacement.keySet().removeAll(componentsInTransit.keySet());
+
+        long newest = newestFile(directory);
+        for (long number = generation; number <= newest; number++) {
+            replayJournal(journalFile(directory, number), componentPlacement, componentsInTransit);
+        }
+    }
+
+    // Replays records of a journal file, if it exists.
+    private static void replayJournal(Path journal, Map<ComponentId, DeviceId> componentPlacement,
+                                      Map<ComponentId, DeviceId> componentsInTransit) throws IOException {
+        if (!Files.exists(journal)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long offset = 0; offset + RECORD_SIZE <= size; offset += CHUNK_SIZE) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(CHUNK_SIZE, size - offset));
+                chunk.order(ByteOrder.nativeOrder());
+                for (int position = 0; position + RECORD_SIZE <= chunk.limit(); position += RECORD_SIZE) {
+                    replay(chunk, position, componentPlacement, componentsInTransit);
+                }
+            }
+        }
+    }
+
+    private static void replay(MappedByteBuffer chunk, int position, Map<ComponentId, DeviceId> componentPlacement,
+                               Map<ComponentId, DeviceId> componentsInTransit) {
+        int type = chunk.getInt(position + TYPE_OFFSET);
+        ComponentId component = new ComponentId(chunk.getInt(position + COMPONENT_OFFSET));
+        DeviceId device = new DeviceId(chunk.getInt(position + DEVICE_OFFSET));
+        switch (type) {
+            case ADD, MOVE -> {
+                componentsInTransit.remove(component);
+                componentPlacement.put(component, device);
+            }
+            case DEPART -> {
+                componentPlacement.remove(component);
+                componentsInTransit.put(component, device);
+            }
+            case REMOVE -> {
+                componentsInTransit.remove(component);
+                componentPlacement.remove(component);
+            }
+            default -> { } // EMPTY - record has not been written.
+        }
+    }
+
+    /*
+     * INPUT: Component, which has left its source device, and destination of its transfer (null for REMOVE).
+     * FUNCTION: Appends a record of the departure. Departure of a REMOVE transfer is its completion, as its slot
+     * may be taken by another component right away.
+     * OUTPUT: True if a snapshot is due - exactly one append of each generation returns true.
+     */
+    public boolean appendDeparture(ComponentId component, DeviceId destination) {
+        if (destination == null) {
+            return append(REMOVE, component, null);
+        }
+        inTransit.put(component, destination); // Before the record, so a snapshot missing the record sees it.
+        return append(DEPART, component, destination);
+    }
+
+    /*
+     * INPUT: Restored components in transit and their destination (see restore()).
+     * FUNCTION: Keeps them in transit in snapshots, until their transfers complete. Called before the first snapshot.
+     */
+    void resumeTransit(Map<ComponentId, DeviceId> componentsInTransit) {
+        inTransit.putAll(componentsInTransit);
+    }
+
+    /*
+     * INPUT: Type of a transfer, which has ended its perform phase, its component and destination device.
+     * FUNCTION: Appends a record of the completed transfer to the journal.
+     * OUTPUT: True if a snapshot is due - exactly one append of each generation returns true.
+     */
+    public boolean appendCompletion(TransferType type, ComponentId component, DeviceId destination) {
+        int recordType = switch (type) {
+            case ADD -> ADD;
+            case REMOVE -> REMOVE;
+            case MOVE -> MOVE;
+        };
+        boolean snapshotDue = append(recordType, component, destination);
+        if (type != TransferType.REMOVE) {
+            inTransit.remove(component); // After the record, so a snapshot missing the record sees the component.
+        }
+        return snapshotDue;
+    }
+
+    private boolean append(int type, ComponentId component, DeviceId device) {
+        while (true) {
+            Generation generation = current;
+            if (generation == null) {
+                throw new IllegalStateException("Journal has no snapshot yet.");
+            }
+
+            long record = generation.nextRecord.getAndIncrement();
+            MappedByteBuffer chunk = chunk(generation, (int) (record / RECORDS_PER_CHUNK));
+            if (chunk == null) {
+                continue; // Generation was closed by a snapshot - the record goes to the next one.
+            }
+
+            int position = (int) (record % RECORDS_PER_CHUNK) * RECORD_SIZE;
+            chunk.putInt(position + COMPONENT_OFFSET, id(component));
+            chunk.putInt(position + DEVICE_OFFSET, device == null ? 0 : id(device));
+            INT_VIEW.setRelease(chunk, position + TYPE_OFFSET, type);
+            return record == snapshotEvery;
+        }
+    }
+
+    // Returns the mapped chunk of the journal, or null if the generation is closed.
+    private static MappedByteBuffer chunk(Generation generation, int index) {
+        MappedByteBuffer[] chunks = generation.chunks;
+        if (index < chunks.length) {
+            return chunks[index];
+        }
+
+        generation.mapping.lock();
+        try {
+            if (generation.closed) {
+                return null;
+            }
+            while (generation.chunks.length <= index) {
+                MappedByteBuffer[] grown = new MappedByteBuffer[generation.chunks.length + 1];
+                System.arraycopy(generation.chunks, 0, grown, 0, generation.chunks.length);
+                grown[grown.length - 1] = generation.channel.map(FileChannel.MapMode.READ_WRITE,
+                        (grown.length - 1) * CHUNK_SIZE, CHUNK_SIZE);
+                grown[grown.length - 1].order(ByteOrder.nativeOrder());
+                generation.chunks = grown;
+            }
+            return generation.chunks[index];
+        } catch (ClosedChannelException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            generation.mapping.unlock();
+        }
+    }
+
+    /*
+     * INPUT: Capacities of devices and current placement of components.
+     * FUNCTION: Starts a new generation of the journal, writes a snapshot of the placement and deletes files of older
+     * generations. Does nothing, if another snapshot is being taken.
+     * OUTPUT: No explicit output. Throws UncheckedIOException, if the snapshot cannot be written.
+     */
+    public void snapshot(Map<DeviceId, Integer> deviceTotalSlots, PlacementTable componentPlacement) {
+        if (!snapshotting.tryLock()) {
+            return;
+        }
+        try {
+            long number = lastGeneration + 1;
+            Generation previous = current;
+            current = new Generation(FileChannel.open(journalFile(directory, number), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            lastGeneration = number;
+            if (previous != null) {
+                close(previous);
+            }
+            // Read before the placement: a component missing here has arrived, before the placement is read.
+            HashMap<ComponentId, DeviceId> arriving = new HashMap<>(inTransit);
+
+            Path temporary = directory.resolve("snapshot-" + number + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                output.writeInt(SNAPSHOT_MAGIC);
+                output.writeInt(deviceTotalSlots.size());
+                for (Map.Entry<DeviceId, Integer> entry : deviceTotalSlots.entrySet()) {
+                    output.writeInt(id(entry.getKey()));
+                    output.writeInt(entry.getValue());
+                }
+                output.writeInt(arriving.size());
+                for (Map.Entry<ComponentId, DeviceId> entry : arriving.entrySet()) {
+                    output.writeInt(id(entry.getKey()));
+                    output.writeInt(id(entry.getValue()));
+                }
+                componentPlacement.forEach((component, device) -> {
+                    try {
+                        output.writeInt(id(component));
+                        output.writeInt(id(device));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                output.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, snapshotFile(directory, number), StandardCopyOption.ATOMIC_MOVE);
+
+            deleteOlderGenerations(number);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            snapshotting.unlock();
+        }
+    }
+
+    // Closes the journal of a generation. Appends to it, which have not mapped their chunk yet, are retried.
+    private static void close(Generation generation) throws IOException {
+        generation.mapping.lock();
+        try {
+            generation.closed = true;
+            generation.channel.close();
+        } finally {
+            generation.mapping.unlock();
+        }
+    }
+
+    private void deleteOlderGenerations(long number) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                long generation = generationOf(file);
+                if (generation > 0 && generation < number) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    // Returns the newest generation with a complete snapshot, or 0 if there is none.
+    private static long newestGeneration(Path directory) throws IOException {
+        long newest = 0;
+        if (!Files.isDirectory(directory)) {
+            return newest;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*")) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().endsWith(".tmp")) {
+                    newest = Math.max(newest, generationOf(file));
+                }
+            }
+        }
+        return newest;
+    }
+
+    // Returns the newest generation of any snapshot or journal file (complete or not), or 0 if there is none.
+    private static long newestFile(Path directory) throws IOException {
+        long newest = 0;
+        if (!Files.isDirectory(directory)) {
+            return newest;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                newest = Math.max(newest, generationOf(file));
+            }
+        }
+        return newest;
+    }
+
+    // Returns the generation of a journal or snapshot file, or 0 if it is not one of them.
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        int dash = name.indexOf('-');
+        if (dash < 0 || !(name.startsWith("snapshot-") || name.startsWith("journal-"))) {
+            return 0;
+        }
+        int end = name.endsWith(".tmp") ? name.length() - 4 : name.length();
+        try {
+            return Long.parseLong(name.substring(dash + 1, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Path snapshotFile(Path directory, long generation) {
+        return directory.resolve("snapshot-" + generation);
+    }
+
+    private static Path journalFile(Path directory, long generation) {
+        return directory.resolve("journal-" + generation);
+    }
+
+    // Id of a component or device. ComponentId.hashCode() and DeviceId.hashCode() are their ids.
+    private static int id(Object idObject) {
+        return idObject.hashCode();
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/*
+ * Placement of components at one point in time (see StorageSystemImplementation.snapshot()). Components, which have
+ * left their source device and have not reached their destination yet, are not placed on any device.
+ */
+public class PlacementSnapshot {
+
+    private final Map<ComponentId, DeviceId> componentPlacement;
+    private final Map<DeviceId, Integer> usedSlots;
+
+    PlacementSnapshot(HashMap<ComponentId, DeviceId> componentPlacement, HashMap<DeviceId, Integer> usedSlots) {
+        this.componentPlacement = Collections.unmodifiableMap(componentPlacement);
+        this.usedSlots = usedSlots;
+    }
+
+    // Returns the device, on which the component was placed, or null if it was not placed on any device.
+    public DeviceId whereIs(ComponentId component) {
+        return componentPlacement.get(component);
+    }
+
+    // Returns the placement of all components, which were placed on a device.
+    public Map<ComponentId, DeviceId> getPlacement() {
+        return componentPlacement;
+    }
+
+    /*
+     * Returns the number of slots taken by components placed on the device, which does not include slots reserved
+     * by incoming transfers and by leases (see StorageSystemImplementation.occupancy()), or 0 if there is no device.
+     */
+    public int usedSlots(DeviceId device) {
+        return usedSlots.getOrDefault(device, 0);
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.function.BiConsumer;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/*
+ * State of components kept by the storage system: current placement of each component and whether it is being
+ * transferred. Implementations are thread-safe - operations on different components can be called concurrently,
+ * while operations on a component are called only by the transfer, which has claimed it (except for claim()).
+ */
+public interface PlacementTable {
+
+    // Returns the device, on which the component is placed, or null if it is not placed on any device.
+    DeviceId get(ComponentId component);
+
+    // Places the component on the device. If device is null, placement of the component is removed.
+    void put(ComponentId component, DeviceId device);
+
+    // Marks the component as being transferred. Returns false, if it already was.
+    boolean claim(ComponentId component);
+
+    // Marks the component as not being transferred.
+    void release(ComponentId component);
+
+    // Calls action for every placed component and its device. Concurrent changes may or may not be seen.
+    void forEach(BiConsumer<ComponentId, DeviceId> action);
+
+}
@@ -0,0 +1,329 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+/*
+ * PlacementTable for large inventories, which keeps no objects per component.
+ *
+ * Devices are numbered with consecutive indexes. Each component is an entry of an open-addressing (linear probing)
+ * int -> int hash table: key is the id of the component, value packs the index of its device and a flag set while
+ * the component is being transferred. Component without placement, which is not transferred, has no entry at all.
+ *
+ * Table is split into segments, each guarded by its own StampedLock. Lookups use optimistic reads, so they do not
+ * write to shared memory. Entries of a segment are stored in Slots - on the heap by default, see
+ * OffHeapPlacementTable for slots stored outside of the heap.
+ */
+public class PrimitivePlacementTable implements PlacementTable {
+
+    private static final int TRANSFERRED = 1 << 31; // Flag of a value - component is being transferred.
+    private static final int NO_DEVICE = 0; // Device part of a value, when component is not placed on any device.
+    private static final int SEGMENT_BITS = 6;
+    private static final int MIN_CAPACITY = 16;
+    private static final float MAX_LOAD = 0.6f;
+
+    /*
+     * Fixed-size array of entries (key, value) of a segment. Empty slots have value 0.
+     * When a segment grows, its slots are replaced as a whole.
+     */
+    protected interface Slots {
+        int capacity();
+
+        int key(int slot);
+
+        int value(int slot);
+
+        void set(int slot, int key, int value);
+
+        void setValue(int slot, int value);
+    }
+
+    // Slots stored on the heap, key and value of each entry next to each other.
+    private static final class HeapSlots implements Slots {
+        private final int[] entries;
+
+        private HeapSlots(int capacity) {
+            this.entries = new int[2 * capacity];
+        }
+
+        @Override
+        public int capacity() {
+            return entries.length / 2;
+        }
+
+        @Override
+        public int key(int slot) {
+            return entries[2 * slot];
+        }
+
+        @Override
+        public int value(int slot) {
+            return entries[2 * slot + 1];
+        }
+
+        @Override
+        public void set(int slot, int key, int value) {
+            entries[2 * slot] = key;
+            entries[2 * slot + 1] = value;
+        }
+
+        @Override
+        public void setValue(int slot, int value) {
+            entries[2 * slot + 1] = value;
+        }
+    }
+
+    // Segment of the table.
+    private static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private Slots slots;
+        private int size;
+
+        private Segment(Slots slots) {
+            this.slots = slots;
+            this.size = 0;
+        }
+    }
+
+    private final IntFunction<Slots> slotsFactory; // Creates slots of given capacity.
+    private final Segment[] segments;
+    private final DeviceId[] devices; // Devices by their index (index 0 means no device).
+    private final HashMap<DeviceId, Integer> deviceIndex;
+
+    public PrimitivePlacementTable(Collection<DeviceId> devices, Map<ComponentId, DeviceId> componentPlacement) {
+        this(devices, componentPlacement, HeapSlots::new);
+    }
+
+    protected PrimitivePlacementTable(Collection<DeviceId> devices, Map<ComponentId, DeviceId> componentPlacement,
+                                      IntFunction<Slots> slotsFactory) {
+        this.slotsFactory = slotsFactory;
+        this.devices = new DeviceId[devices.size() + 1];
+        this.deviceIndex = new HashMap<>();
+        int index = NO_DEVICE + 1;
+        for (DeviceId device : devices) {
+            this.devices[index] = device;
+            this.deviceIndex.put(device, index);
+            index++;
+        }
+
+        // Segments are sized up front, so that initial placement does not resize them.
+        int perSegment = (int) (componentPlacement.size() / (1 << SEGMENT_BITS) / MAX_LOAD) + 1;
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(perSegment) << 1);
+        this.segments = new Segment[1 << SEGMENT_BITS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(slotsFactory.apply(capacity));
+        }
+
+        // Table is not shared yet, so entries are inserted without locking segments.
+        for (Map.Entry<ComponentId, DeviceId> entry : componentPlacement.entrySet()) {
+            int key = key(entry.getKey());
+            int hash = hash(key);
+            insert(segment(hash), key, hash, deviceIndex.get(entry.getValue()));
+        }
+    }
+
+    // Id of a component. ComponentId.hashCode() is Integer.hashCode() of its id, that is the id itself.
+    private static int key(ComponentId component) {
+        return component.hashCode();
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segment(int hash) {
+        return segments[hash & ((1 << SEGMENT_BITS) - 1)];
+    }
+
+    private static int homeSlot(int hash, int mask) {
+        return (hash >>> SEGMENT_BITS) & mask;
+    }
+
+    // Returns the slot of the key, or -1 if there is no entry. Segment has to be locked or optimistically read.
+    private static int find(Slots slots, int key, int hash) {
+        int capacity = slots.capacity();
+        int mask = capacity - 1;
+        int slot = homeSlot(hash, mask);
+        // Under an optimistic read, the table can change concurrently, so at most whole table is probed.
+        for (int probes = 0; probes < capacity; probes++) {
+            if (slots.value(slot) == 0) {
+                return -1;
+            }
+            if (slots.key(slot) == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Returns the value of the key (0 if there is no entry).
+    private int getValue(int key) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+
+        long stamp = segment.lock.tryOptimisticRead();
+        Slots slots = segment.slots;
+        int slot = find(slots, key, hash);
+        int value = slot < 0 ? 0 : slots.value(slot);
+        if (segment.lock.validate(stamp)) {
+            return value;
+        }
+
+        stamp = segment.lock.readLock();
+        try {
+            slot = find(segment.slots, key, hash);
+            return slot < 0 ? 0 : segment.slots.value(slot);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * INPUT: Key, bits of its value to be cleared and bits to be set afterwards.
+     * FUNCTION: Updates the entry of the key, inserting or removing it if needed (value 0 means no entry).
+     * OUTPUT: Old value of the key.
+     */
+    private int update(int key, int clearBits, int setBits) {
+        int hash = hash(key);
+        Segment segment = segment(hash);
+
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = find(segment.slots, key, hash);
+            int oldValue = slot < 0 ? 0 : segment.slots.value(slot);
+            int newValue = (oldValue & ~clearBits) | setBits;
+
+            if (newValue == oldValue) {
+                return oldValue;
+            }
+            if (slot >= 0 && newValue != 0) {
+                segment.slots.setValue(slot, newValue);
+            } else if (slot >= 0) {
+                removeSlot(segment, slot);
+            } else {
+                insert(segment, key, hash, newValue);
+            }
+            return oldValue;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    private void insert(Segment segment, int key, int hash, int value) {
+        if (segment.size + 1 > segment.slots.capacity() * MAX_LOAD) {
+            resize(segment);
+        }
+
+        Slots slots = segment.slots;
+        int mask = slots.capacity() - 1;
+        int slot = homeSlot(hash, mask);
+        while (slots.value(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots.set(slot, key, value);
+        segment.size++;
+    }
+
+    private void resize(Segment segment) {
+        Slots oldSlots = segment.slots;
+        segment.slots = slotsFactory.apply(oldSlots.capacity() * 2);
+        segment.size = 0;
+
+        for (int i = 0; i < oldSlots.capacity(); i++) {
+            if (oldSlots.value(i) != 0) {
+                insert(segment, oldSlots.key(i), hash(oldSlots.key(i)), oldSlots.value(i));
+            }
+        }
+    }
+
+    // Removes the entry and shifts back entries following it, so that no tombstones are needed.
+    private static void removeSlot(Segment segment, int slot) {
+        Slots slots = segment.slots;
+        int mask = slots.capacity() - 1;
+
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slots.value(next) == 0) {
+                break;
+            }
+            // Entry can fill the hole, if its home slot is not cyclically inside (hole, next].
+            int home = homeSlot(hash(slots.key(next)), mask);
+            boolean between = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!between) {
+                slots.set(hole, slots.key(next), slots.value(next));
+                hole = next;
+            }
+        }
+        slots.setValue(hole, 0);
+        segment.size--;
+    }
+
+    @Override
+    public DeviceId get(ComponentId component) {
+        return devices[getValue(key(component)) & ~TRANSFERRED];
+    }
+
+    @Override
+    public void put(ComponentId component, DeviceId device) {
+        int index = device == null ? NO_DEVICE : deviceIndex.get(device);
+        update(key(component), ~TRANSFERRED, index);
+    }
+
+    @Override
+    public boolean claim(ComponentId component) {
+        return (update(key(component), 0, TRANSFERRED) & TRANSFERRED) == 0;
+    }
+
+    @Override
+    public void release(ComponentId component) {
+        update(key(component), TRANSFERRED, 0);
+    }
+
+    @Override
+    public void forEach(BiConsumer<ComponentId, DeviceId> action) {
+        for (Segment segment : segments) {
+            // Entries are copied, so that the action is not called under the lock.
+            int[] keys;
+            int[] values;
+            int count = 0;
+            long stamp = segment.lock.readLock();
+            try {
+                Slots slots = segment.slots;
+                keys = new int[segment.size];
+                values = new int[segment.size];
+                for (int slot = 0; slot < slots.capacity(); slot++) {
+                    if ((slots.value(slot) & ~TRANSFERRED) != NO_DEVICE) {
+                        keys[count] = slots.key(slot);
+                        values[count] = slots.value(slot) & ~TRANSFERRED;
+                        count++;
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+
+            for (int i = 0; i < count; i++) {
+                action.accept(new ComponentId(keys[i]), devices[values[i]]);
+            }
+        }
+    }
+
+}
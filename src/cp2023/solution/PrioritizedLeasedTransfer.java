@@ -0,0 +1,66 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+/*
+ * Transfer with both a lease and a priority class, returned by LeasedTransfer.of() for a PrioritizedTransfer and by
+ * PrioritizedTransfer.of() for a LeasedTransfer, so that wrapping a transfer does not lose what it already has.
+ * prepare() and perform() are delegated to the transfer.
+ */
+final class PrioritizedLeasedTransfer implements LeasedTransfer, PrioritizedTransfer {
+
+    private final ComponentTransfer transfer;
+    private final SlotLease lease;
+    private final TransferPriority priority;
+
+    PrioritizedLeasedTransfer(ComponentTransfer transfer, SlotLease lease, TransferPriority priority) {
+        this.transfer = transfer;
+        this.lease = lease;
+        this.priority = priority;
+    }
+
+    @Override
+    public SlotLease getLease() {
+        return lease;
+    }
+
+    @Override
+    public TransferPriority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public ComponentId getComponentId() {
+        return transfer.getComponentId();
+    }
+
+    @Override
+    public DeviceId getSourceDeviceId() {
+        return transfer.getSourceDeviceId();
+    }
+
+    @Override
+    public DeviceId getDestinationDeviceId() {
+        return transfer.getDestinationDeviceId();
+    }
+
+    @Override
+    public void prepare() {
+        transfer.prepare();
+    }
+
+    @Override
+    public void perform() {
+        transfer.perform();
+    }
+
+}
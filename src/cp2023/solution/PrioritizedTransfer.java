@@ -0,0 +1,63 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+/*
+ * Transfer with a priority class, which decides how soon it is given a slot on its destination device, when it has
+ * to wait for one. Priority of a transfer must not change while it is executed.
+ */
+public interface PrioritizedTransfer extends ComponentTransfer {
+
+    TransferPriority getPriority();
+
+    /*
+     * Returns the transfer with the given priority. prepare() and perform() are delegated to the transfer.
+     * Lease of a LeasedTransfer is kept.
+     */
+    static PrioritizedTransfer of(ComponentTransfer transfer, TransferPriority priority) {
+        if (transfer instanceof LeasedTransfer leased) {
+            return new PrioritizedLeasedTransfer(transfer, leased.getLease(), priority);
+        }
+        return new PrioritizedTransfer() {
+            @Override
+            public TransferPriority getPriority() {
+                return priority;
+            }
+
+            @Override
+            public ComponentId getComponentId() {
+                return transfer.getComponentId();
+            }
+
+            @Override
+            public DeviceId getSourceDeviceId() {
+                return transfer.getSourceDeviceId();
+            }
+
+            @Override
+            public DeviceId getDestinationDeviceId() {
+                return transfer.getDestinationDeviceId();
+            }
+
+            @Override
+            public void prepare() {
+                transfer.prepare();
+            }
+
+            @Override
+            public void perform() {
+                transfer.perform();
+            }
+        };
+    }
+
+}
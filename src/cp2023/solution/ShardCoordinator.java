@@ -0,0 +1,272 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemImplementation.LatchPhase;
+import cp2023.solution.StorageSystemImplementation.TransferStep;
+import cp2023.solution.StorageSystemImplementation.TransferType;
+
+/*
+ * Coordinator of the shards of a sharded storage system (see ShardedStorageSystem). It executes MOVE transfers
+ * between devices of different shards and resolves cycles of waiting transfers, which span several shards.
+ *
+ * MOVE transfer between shards is split into two transfers of its component: a REMOVE transfer from its source
+ * device (departure) in the source shard and an ADD transfer to its destination device (arrival) in the destination
+ * shard. Arrival is admitted like any ADD transfer, so it may wait for space in the queue of its device. Departure
+ * claims the component at once, but starts leaving its device only when the arrival has got its space, just like
+ * the MOVE transfer would. Departure calls prepare() of the MOVE transfer and arrival calls its perform().
+ *
+ * Every shard sees only its own devices, so a cycle through devices of several shards is closed only by MOVE
+ * transfers between shards. While any of them waits, every MOVE transfer, which starts waiting in any shard, looks
+ * for such cycles: all shards are locked and their waiting MOVE transfers together with the waiting MOVE transfers
+ * between shards are searched by TransfersGraph.findCycles(). Components take up one slot, so every cycle fits and
+ * every cycle is found. Transfers of a cycle take each other's places in the shards of their devices. If no MOVE
+ * transfer between shards waits, shards work independently of each other.
+ */
+class ShardCoordinator {
+
+    // Waiting MOVE transfer between shards: departure and arrival of its component.
+    private static final class Crossing {
+        final TransferState departure;
+        final TransferState arrival;
+
+        Crossing(TransferState departure, TransferState arrival) {
+            this.departure = departure;
+            this.arrival = arrival;
+        }
+    }
+
+    private final StorageSystemImplementation[] shards;
+    private final Map<DeviceId, Integer> deviceShard; // Index of the shard of each device.
+
+    // Graph of all devices without edges - waiting transfers are only searched for cycles as its extra edges.
+    private final TransfersGraph devices;
+
+    // Waiting MOVE transfers between shards, by their edges in the graph of all devices.
+    private final ConcurrentHashMap<TransferState, Crossing> crossings;
+
+    private StorageSystemMetrics metrics; // Metrics shared by all shards, or null. Read when all shards are locked.
+
+    ShardCoordinator(StorageSystemImplementation[] shards, Map<DeviceId, Integer> deviceShard) {
+        this.shards = shards;
+        this.deviceShard = deviceShard;
+        this.devices = new TransfersGraph(deviceShard.keySet());
+        this.crossings = new ConcurrentHashMap<>();
+    }
+
+    // Cycles spanning shards are recorded in the metrics (null disables them). All shards have to be locked.
+    void useMetrics(StorageSystemMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /*
+     * INPUT: MOVE transfer between a device of shard "from" and a device of shard "to".
+     * FUNCTION: Executes the transfer as its departure from the source shard and its arrival to the destination
+     * shard. If the arrival has to wait for space, the transfer is registered as a waiting MOVE transfer between
+     * shards, until the arrival gets its space from a transfer leaving the device or from a cycle.
+     * OUTPUT: No explicit output. Throws exceptions of the departure or of the arrival, if the transfer is illegal.
+     */
+    void execute(ComponentTransfer transfer, StorageSystemImplementation from, StorageSystemImplementation to)
+            throws TransferException {
+        TransferState departure = from.checkTransfer(new Departure(transfer)); // Component belongs to the transfer.
+        TransferState arrival;
+        try {
+            arrival = to.admitTransfer(new Arrival(transfer));
+        } catch (TransferException e) {
+            from.abandon(departure);
+            throw e;
+        }
+
+        boolean waited = arrival.step() != TransferStep.STARTED;
+        if (waited) {
+            TransferState edge = new TransferState(transfer, TransferType.MOVE);
+            crossings.put(edge, new Crossing(departure, arrival));
+            resolveCycles();
+            to.awaitLatch(arrival, LatchPhase.PREPARE);
+            crossings.remove(edge);
+            to.startWaitingTransfer(arrival);
+        }
+
+        // Component leaves its source device, unless a transfer of a cycle has already taken its place.
+        from.startWaitingTransfer(departure);
+        from.preparePhase(departure);
+        from.performPhase(departure);
+
+        to.preparePhase(arrival);
+        if (waited) {
+            to.awaitLatch(arrival, LatchPhase.PERFORM);
+        }
+        to.performPhase(arrival);
+    }
+
+    /*
+     * FUNCTION: Looks for cycles of waiting transfers closed by waiting MOVE transfers between shards and releases
+     * them, until there are none. Shards are locked in order of their indices, so searches do not run concurrently.
+     * No device can be locked.
+     * OUTPUT: No explicit output.
+     */
+    void resolveCycles() {
+        if (crossings.isEmpty()) {
+            return;
+        }
+
+        for (StorageSystemImplementation shard : shards) {
+            shard.lockAllDevices();
+        }
+        try {
+            ArrayList<ArrayList<TransferState>> cycles;
+            do {
+                // Transfers could have been released after their devices were unlocked - they do not wait anymore.
+                ArrayList<TransferState> edges = new ArrayList<>();
+                ArrayList<TransferState> closingEdges = new ArrayList<>();
+                for (StorageSystemImplementation shard : shards) {
+                    shard.forEachWaitingMove(edge -> {
+                        if (!edge.isLatchReleased(LatchPhase.PREPARE)) {
+                            edges.add(edge);
+                        }
+                    });
+                }
+                crossings.forEach((edge, crossing) -> {
+                    if (!crossing.arrival.isLatchReleased(LatchPhase.PREPARE)) {
+                        edges.add(edge);
+                        closingEdges.add(edge);
+                    }
+                });
+                if (closingEdges.isEmpty()) {
+                    break;
+                }
+
+                cycles = devices.findCycles(edges, closingEdges, (entering, leaving) -> true);
+                for (ArrayList<TransferState> cycle : cycles) {
+                    releaseCycle(cycle);
+                }
+            } while (!cycles.isEmpty());
+        } finally {
+            for (int shard = shards.length - 1; shard >= 0; shard--) {
+                shards[shard].unlockAllDevices();
+            }
+        }
+
+        for (StorageSystemImplementation shard : shards) {
+            shard.startChains();
+        }
+    }
+
+    /*
+     * INPUT: Cycle of waiting transfers through devices of several shards, closed by a MOVE transfer between shards.
+     * All devices have to be locked.
+     * FUNCTION: Each transfer of the cycle takes the place of the next one on its destination device: the arrival
+     * of a MOVE transfer between shards enters the device and the departure of one leaves it. Places are taken
+     * by the shards of the devices (see StorageSystemImplementation.releaseInPlaceOf()).
+     * OUTPUT: No explicit output.
+     */
+    private void releaseCycle(ArrayList<TransferState> cycle) {
+        if (metrics != null) {
+            metrics.recordCycle(cycle.size());
+        }
+
+        ArrayList<ArrayList<TransferState>> entering = new ArrayList<>(shards.length);
+        ArrayList<ArrayList<TransferState>> leaving = new ArrayList<>(shards.length);
+        for (int shard = 0; shard < shards.length; shard++) {
+            entering.add(new ArrayList<>());
+            leaving.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < cycle.size(); i++) {
+            TransferState current = cycle.get(i);
+            TransferState next = cycle.get((i + 1) % cycle.size());
+            int shard = deviceShard.get(current.transfer.getDestinationDeviceId());
+            Crossing currentCrossing = crossings.get(current);
+            Crossing nextCrossing = crossings.get(next);
+            entering.get(shard).add(currentCrossing == null ? current : currentCrossing.arrival);
+            leaving.get(shard).add(nextCrossing == null ? next : nextCrossing.departure);
+        }
+
+        ComponentTransfer closedBy = cycle.get(0).transfer;
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (!entering.get(shard).isEmpty()) {
+                shards[shard].releaseInPlaceOf(entering.get(shard), leaving.get(shard), closedBy);
+            }
+        }
+    }
+
+    // REMOVE transfer of the component of a MOVE transfer from its source device, which calls its prepare().
+    private static final class Departure implements ComponentTransfer {
+        private final ComponentTransfer move;
+
+        Departure(ComponentTransfer move) {
+            this.move = move;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return move.getComponentId();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return move.getSourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return null;
+        }
+
+        @Override
+        public void prepare() {
+            move.prepare();
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+
+    // ADD transfer of the component of a MOVE transfer to its destination device, which calls its perform().
+    private static final class Arrival implements ComponentTransfer {
+        private final ComponentTransfer move;
+
+        Arrival(ComponentTransfer move) {
+            this.move = move;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return move.getComponentId();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return null;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return move.getDestinationDeviceId();
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+            move.perform();
+        }
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.ComponentAlreadyExists;
+import cp2023.exceptions.DeviceDoesNotExist;
+import cp2023.exceptions.IllegalTransferType;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+import cp2023.solution.StorageSystemImplementation.PlacementStorage;
+
+/*
+ * Storage system, whose devices are split into shards: independent storage systems (StorageSystemImplementation)
+ * with their own locks, queues, placement tables and graphs of waiting transfers. Devices are sorted by their
+ * identifiers and every shard gets a range of them of (almost) equal size. Transfers between devices of one shard
+ * are executed by the shard alone, so they never contend with transfers of other shards, even in GLOBAL mode.
+ * MOVE transfers between shards and cycles of waiting transfers spanning shards are handled by ShardCoordinator.
+ *
+ * Shards know only the components placed on their own devices, so the system keeps the set of all components,
+ * against which ADD transfers are checked. It is modified only by ADD and REMOVE transfers.
+ * Every component takes up one slot of a device.
+ *
+ * Metrics (see enableMetrics()) are shared by all shards, so they count transfers of the whole system, including
+ * cycles spanning shards.
+ */
+public class ShardedStorageSystem implements StorageSystem {
+
+    private final StorageSystemImplementation[] shards;
+    private final HashMap<DeviceId, StorageSystemImplementation> deviceShards; // Shard of each device.
+    private final ShardCoordinator coordinator;
+
+    // Components, which exist in the system or are being added to it.
+    private final Set<ComponentId> components;
+
+    private volatile StorageSystemMetrics metrics; // Modified only when all shards are locked.
+
+    /*
+     * Sharded system, for which StorageSystemFactory has already validated the arguments and counted slots taken
+     * on each device (deviceOccupancy). shardCount is at least one, there are at most as many shards as devices.
+     */
+    ShardedStorageSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                         Map<ComponentId, DeviceId> componentPlacement,
+                         Map<DeviceId, Integer> deviceOccupancy,
+                         int shardCount,
+                         ConcurrencyMode mode,
+                         Executor asyncExecutor,
+                         PlacementStorage storage) {
+        ArrayList<DeviceId> devices = new ArrayList<>(deviceTotalSlots.keySet());
+        devices.sort(null);
+        shardCount = Math.min(shardCount, devices.size());
+
+        // Devices, components and occupancy of each shard.
+        HashMap<DeviceId, Integer> deviceShard = new HashMap<>();
+        ArrayList<HashMap<DeviceId, Integer>> shardSlots = new ArrayList<>(shardCount);
+        ArrayList<HashMap<DeviceId, Integer>> shardOccupancy = new ArrayList<>(shardCount);
+        ArrayList<HashMap<ComponentId, DeviceId>> shardPlacement = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            shardSlots.add(new HashMap<>());
+            shardOccupancy.add(new HashMap<>());
+            shardPlacement.add(new HashMap<>());
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            DeviceId device = devices.get(i);
+            int shard = (int) ((long) i * shardCount / devices.size());
+            deviceShard.put(device, shard);
+            shardSlots.get(shard).put(device, deviceTotalSlots.get(device));
+            shardOccupancy.get(shard).put(device, deviceOccupancy.get(device));
+        }
+        this.components = ConcurrentHashMap.newKeySet(componentPlacement.size());
+        for (Map.Entry<ComponentId, DeviceId> entry : componentPlacement.entrySet()) {
+            shardPlacement.get(deviceShard.get(entry.getValue())).put(entry.getKey(), entry.getValue());
+            components.add(entry.getKey());
+        }
+
+        this.shards = new StorageSystemImplementation[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards[shard] = new StorageSystemImplementation(shardSlots.get(shard), shardPlacement.get(shard),
+                    Map.of(), mode, asyncExecutor, storage, null, shardOccupancy.get(shard));
+        }
+        this.deviceShards = new HashMap<>();
+        for (Map.Entry<DeviceId, Integer> entry : deviceShard.entrySet()) {
+            deviceShards.put(entry.getKey(), shards[entry.getValue()]);
+        }
+
+        this.coordinator = new ShardCoordinator(shards, deviceShard);
+        for (StorageSystemImplementation shard : shards) {
+            shard.joinCoordinator(coordinator);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /*
+     * Returns the device, on which the component is placed, or null if it is not placed on any device - see
+     * StorageSystemImplementation.whereIs(). Shards are asked one by one, so a component moved between shards
+     * meanwhile can be missed.
+     */
+    public DeviceId whereIs(ComponentId component) {
+        for (StorageSystemImplementation shard : shards) {
+            DeviceId device = shard.whereIs(component);
+            if (device != null) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    // See StorageSystemImplementation.occupancy().
+    public int occupancy(DeviceId device) {
+        return shardOfExisting(device).occupancy(device);
+    }
+
+    // See StorageSystemImplementation.queueDepth().
+    public int queueDepth(DeviceId device) {
+        return shardOfExisting(device).queueDepth(device);
+    }
+
+    /*
+     * Enables metrics of the system (see StorageSystemMetrics), which count transfers admitted since now by all
+     * shards and cycles resolved by them and by the coordinator.
+     * OUTPUT: Metrics of the system. If they are already enabled, the same metrics are returned.
+     */
+    public StorageSystemMetrics enableMetrics() {
+        lockAllShards();
+        try {
+            if (metrics == null) {
+                metrics = new StorageSystemMetrics(deviceShards.keySet(), this::queueDepth);
+                useMetrics(metrics);
+            }
+            return metrics;
+        } finally {
+            unlockAllShards();
+        }
+    }
+
+    // Disables metrics, so that the system does not record anything anymore.
+    public void disableMetrics() {
+        lockAllShards();
+        try {
+            metrics = null;
+            useMetrics(null);
+        } finally {
+            unlockAllShards();
+        }
+    }
+
+    // Returns metrics of the system, or null if they are disabled.
+    public StorageSystemMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void useMetrics(StorageSystemMetrics metrics) {
+        for (StorageSystemImplementation shard : shards) {
+            shard.useMetrics(metrics);
+        }
+        coordinator.useMetrics(metrics);
+    }
+
+    // Shards are locked in order of their indices, like by the coordinator.
+    private void lockAllShards() {
+        for (StorageSystemImplementation shard : shards) {
+            shard.lockAllDevices();
+        }
+    }
+
+    private void unlockAllShards() {
+        for (int shard = shards.length - 1; shard >= 0; shard--) {
+            shards[shard].unlockAllDevices();
+        }
+    }
+
+    private StorageSystemImplementation shardOfExisting(DeviceId device) {
+        if (device == null) {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+        StorageSystemImplementation shard = deviceShards.get(device);
+        if (shard == null) {
+            throw new IllegalArgumentException("Device does not exist.");
+        }
+        return shard;
+    }
+
+    /*
+     * INPUT: ComponentTransfer object, which is to be executed.
+     * FUNCTION: Executes the transfer in the shard of its devices, or by the coordinator, if its devices belong
+     * to different shards. ADD transfers claim their component in the set of all components first. REMOVE transfers
+     * give it up, once it has left its device, so that it can be added again right away, like to a single system.
+     * OUTPUT: No explicit output. Throws the same exceptions as StorageSystemImplementation.execute().
+     */
+    @Override
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        ComponentId component = transfer.getComponentId();
+        DeviceId source = transfer.getSourceDeviceId();
+        DeviceId destination = transfer.getDestinationDeviceId();
+        if (source == null && destination == null) {
+            throw new IllegalTransferType(component);
+        }
+        StorageSystemImplementation from = shardOf(source);
+        StorageSystemImplementation to = shardOf(destination);
+
+        if (source == null) {
+            if (!components.add(component)) {
+                throw new ComponentAlreadyExists(component, destination);
+            }
+            try {
+                to.execute(transfer);
+            } catch (TransferException e) {
+                components.remove(component);
+                throw e;
+            }
+        } else if (destination == null) {
+            from.execute(new Removal(transfer, components));
+        } else if (from == to) {
+            from.execute(transfer);
+        } else {
+            coordinator.execute(transfer, from, to);
+        }
+    }
+
+    // Returns the shard of the device (or null, if there is no device), or throws if the device does not exist.
+    private StorageSystemImplementation shardOf(DeviceId device) throws DeviceDoesNotExist {
+        if (device == null) {
+            return null;
+        }
+        StorageSystemImplementation shard = deviceShards.get(device);
+        if (shard == null) {
+            throw new DeviceDoesNotExist(device);
+        }
+        return shard;
+    }
+
+    /*
+     * REMOVE transfer, which removes its component from the set of all components, when the component has left its
+     * device: after prepare(), once the shard has removed the component from its placement.
+     */
+    private static final class Removal implements ComponentTransfer {
+        private final ComponentTransfer transfer;
+        private final Set<ComponentId> components;
+
+        Removal(ComponentTransfer transfer, Set<ComponentId> components) {
+            this.transfer = transfer;
+            this.components = components;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return transfer.getComponentId();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return transfer.getSourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return null;
+        }
+
+        @Override
+        public void prepare() {
+            transfer.prepare();
+        }
+
+        @Override
+        public void perform() {
+            components.remove(transfer.getComponentId());
+            transfer.perform();
+        }
+    }
+
+}
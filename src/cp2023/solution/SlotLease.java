@@ -0,0 +1,81 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cp2023.base.DeviceId;
+
+/*
+ * Slots reserved on a device for later transfers - see StorageSystemImplementation.reserve().
+ * Transfer executed with the lease (see LeasedTransfer) takes its slots from the lease, so it is started without
+ * waiting. Slots, which have not been taken, are returned to the device, when the lease is closed or expires.
+ *
+ * Remaining slots are a single atomic word, so taking slots and closing the lease race only on one CAS: every slot
+ * is either taken by a transfer or returned to the device, never both.
+ */
+public class SlotLease implements AutoCloseable {
+
+    private static final int CLOSED = -1; // Remaining slots of a closed or expired lease.
+
+    private final StorageSystemImplementation system;
+    private final DeviceId device;
+    private final AtomicInteger remaining; // Slots, which have not been taken yet, or CLOSED.
+
+    SlotLease(StorageSystemImplementation system, DeviceId device, int slots) {
+        this.system = system;
+        this.device = device;
+        this.remaining = new AtomicInteger(slots);
+    }
+
+    // Takes slots for a transfer to the destination device. Returns false if the lease does not have them.
+    boolean take(DeviceId destination, int slots) {
+        if (!device.equals(destination)) {
+            return false;
+        }
+        int current = remaining.get();
+        while (current >= slots) { // CLOSED lease has no slots.
+            if (remaining.compareAndSet(current, current - slots)) {
+                return true;
+            }
+            current = remaining.get();
+        }
+        return false;
+    }
+
+    // Returns true if the lease has been issued by the system, so that its slots are taken on the system's device.
+    boolean isIssuedBy(StorageSystemImplementation system) {
+        return this.system == system;
+    }
+
+    // Closes the lease. Returns the number of slots, which have not been taken, or 0 if it was already closed.
+    int expire() {
+        return Math.max(remaining.getAndSet(CLOSED), 0);
+    }
+
+    public DeviceId getDevice() {
+        return device;
+    }
+
+    // Returns the number of slots, which can still be taken by transfers.
+    public int getRemaining() {
+        return Math.max(remaining.get(), 0);
+    }
+
+    // Returns true until the lease is closed or expires.
+    public boolean isActive() {
+        return remaining.get() != CLOSED;
+    }
+
+    // Returns slots, which have not been taken, to the device. Closing the lease again has no effect.
+    @Override
+    public void close() {
+        system.returnLease(this);
+    }
+
+}
@@ -8,22 +8,266 @@
  */
 package cp2023.solution;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
 
 import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
 import cp2023.base.DeviceId;
-import cp2023.base.StorageSystem;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+import cp2023.solution.StorageSystemImplementation.PlacementStorage;
 
 
 public final class StorageSystemFactory {
 
-    public static StorageSystem newSystem(
+    // Number of components, from which placement is stored in primitive tables by default.
+    public static final int LARGE_INVENTORY = 1 << 20;
+
+    public static StorageSystemImplementation newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement) {
+        return newSystem(deviceTotalSlots, componentPlacement, ConcurrencyMode.GLOBAL);
+    }
+
+    // Creates a storage system working in the given concurrency mode.
+    public static StorageSystemImplementation newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            ConcurrencyMode mode) {
+        return newSystem(deviceTotalSlots, componentPlacement, mode, ForkJoinPool.commonPool());
+    }
+
+    /*
+     * Creates a storage system to be driven by virtual threads, e.g. one virtual thread per transfer.
+     * Devices are locked separately (STRIPED mode) and the system blocks only on java.util.concurrent primitives,
+     * never inside a monitor, so waiting transfers and long prepare()/perform() calls do not pin carrier threads.
+     * Transfers executed by executeAsync(transfer) run prepare() and perform() on new virtual threads, which are
+     * started directly, so there is no executor to be shut down.
+     */
+    public static StorageSystemImplementation newVirtualThreadSystem(
             Map<DeviceId, Integer> deviceTotalSlots,
             Map<ComponentId, DeviceId> componentPlacement) {
+        ThreadFactory virtualThreads = Thread.ofVirtual().factory();
+        return newVirtualThreadSystem(deviceTotalSlots, componentPlacement,
+                task -> virtualThreads.newThread(task).start());
+    }
+
+    /*
+     * Creates a storage system to be driven by virtual threads, which runs prepare() and perform() of transfers
+     * executed by executeAsync(transfer) on the given executor, e.g. Executors.newVirtualThreadPerTaskExecutor().
+     * Executor is owned by the caller, who shuts it down once the system is no longer used.
+     */
+    public static StorageSystemImplementation newVirtualThreadSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor asyncExecutor) {
+        return newSystem(deviceTotalSlots, componentPlacement, ConcurrencyMode.STRIPED, asyncExecutor);
+    }
+
+    /*
+     * Creates a storage system working in the given concurrency mode, which runs prepare() and perform() of
+     * transfers executed by executeAsync(transfer) on asyncExecutor.
+     * Placement of large inventories (at least LARGE_INVENTORY components) is stored in primitive tables.
+     */
+    public static StorageSystemImplementation newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            ConcurrencyMode mode,
+            Executor asyncExecutor) {
+        return newSystem(deviceTotalSlots, componentPlacement, mode, asyncExecutor, defaultStorage(componentPlacement));
+    }
+
+    private static PlacementStorage defaultStorage(Map<ComponentId, DeviceId> componentPlacement) {
+        return componentPlacement != null && componentPlacement.size() >= LARGE_INVENTORY
+                ? PlacementStorage.PRIMITIVE : PlacementStorage.HASH_MAP;
+    }
+
+    // Creates a storage system, which stores placement of components in the given storage.
+    public static StorageSystemImplementation newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            ConcurrencyMode mode,
+            Executor asyncExecutor,
+            PlacementStorage storage) {
+        HashMap<DeviceId, Integer> deviceOccupancy =
+                checkArguments(deviceTotalSlots, componentPlacement, Map.of(), mode, asyncExecutor, storage);
+
+        // Placement is copied by the storage system straight into its placement table.
+        return new StorageSystemImplementation(deviceTotalSlots, componentPlacement, Map.of(), mode, asyncExecutor,
+                storage, null, deviceOccupancy);
+    }
+
+    /*
+     * Creates a storage system, in which each component takes up the given number of slots of a device
+     * (one slot, if its size is not given). Every component has to fit on every device.
+     * Several small components can take the place of a large one, which leaves a device.
+     */
+    public static StorageSystemImplementation newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Map<ComponentId, Integer> componentSizes,
+            ConcurrencyMode mode,
+            Executor asyncExecutor) {
+        PlacementStorage storage = defaultStorage(componentPlacement);
+        HashMap<DeviceId, Integer> deviceOccupancy =
+                checkArguments(deviceTotalSlots, componentPlacement, componentSizes, mode, asyncExecutor, storage);
+
+        return new StorageSystemImplementation(deviceTotalSlots, componentPlacement, componentSizes, mode,
+                asyncExecutor, storage, null, deviceOccupancy);
+    }
+
+    /*
+     * Creates a storage system, whose devices are split into the given number of shards (see ShardedStorageSystem),
+     * each of them working in the given concurrency mode. Transfers between devices of one shard do not contend
+     * with transfers of other shards.
+     */
+    public static ShardedStorageSystem newShardedSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            int shards,
+            ConcurrencyMode mode,
+            Executor asyncExecutor) {
+        PlacementStorage storage = defaultStorage(componentPlacement);
+        HashMap<DeviceId, Integer> deviceOccupancy =
+                checkArguments(deviceTotalSlots, componentPlacement, Map.of(), mode, asyncExecutor, storage);
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Number of shards has to be positive.");
+        }
+
+        return new ShardedStorageSystem(deviceTotalSlots, componentPlacement, deviceOccupancy, shards, mode,
+                asyncExecutor, storage);
+    }
+
+    /*
+     * Creates a storage system, which persists placement of components in the given directory (see PlacementJournal).
+     * Snapshot of the initial placement is written before the system is returned.
+     */
+    public static StorageSystemImplementation newPersistentSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            ConcurrencyMode mode,
+            Executor asyncExecutor,
+            Path journalDirectory) throws IOException {
+        if (journalDirectory == null) {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+        return newPersistentSystem(deviceTotalSlots, componentPlacement, mode, asyncExecutor,
+                new PlacementJournal(journalDirectory));
+    }
+
+    private static StorageSystemImplementation newPersistentSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            ConcurrencyMode mode,
+            Executor asyncExecutor,
+            PlacementJournal journal) throws IOException {
+        PlacementStorage storage = defaultStorage(componentPlacement);
+        HashMap<DeviceId, Integer> deviceOccupancy =
+                checkArguments(deviceTotalSlots, componentPlacement, Map.of(), mode, asyncExecutor, storage);
+
+        try {
+            return new StorageSystemImplementation(deviceTotalSlots, componentPlacement, Map.of(), mode,
+                    asyncExecutor, storage, journal, deviceOccupancy);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Restores a persistent storage system in GLOBAL mode.
+    public static StorageSystemImplementation restoreSystem(Path journalDirectory) throws IOException {
+        return restoreSystem(journalDirectory, ConcurrencyMode.GLOBAL, ForkJoinPool.commonPool());
+    }
+
+    /*
+     * Restores a storage system from the newest complete snapshot and journals in the given directory, in time
+     * proportional to their size. Transfers, which were in progress, are lost, except for MOVE transfers, which have
+     * already left their source device: their components are not placed on any device, until they arrive at their
+     * destination by ADD transfers, which the restored system starts on its own (executed asynchronously, with empty
+     * prepare() and perform()). Restored system keeps persisting its placement in the same directory.
+     */
+    public static StorageSystemImplementation restoreSystem(
+            Path journalDirectory,
+            ConcurrencyMode mode,
+            Executor asyncExecutor) throws IOException {
+        if (journalDirectory == null) {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentsInTransit = new HashMap<>();
+        PlacementJournal.restore(journalDirectory, deviceTotalSlots, componentPlacement, componentsInTransit);
+
+        // Components stay in transit in snapshots of the restored system, until they arrive.
+        PlacementJournal journal = new PlacementJournal(journalDirectory);
+        journal.resumeTransit(componentsInTransit);
+        StorageSystemImplementation system =
+                newPersistentSystem(deviceTotalSlots, componentPlacement, mode, asyncExecutor, journal);
+        for (Map.Entry<ComponentId, DeviceId> entry : componentsInTransit.entrySet()) {
+            system.executeAsync(new ResumedArrival(entry.getKey(), entry.getValue()));
+        }
+        return system;
+    }
+
+    // ADD transfer, which brings a restored component in transit to its destination device.
+    private static final class ResumedArrival implements ComponentTransfer {
+        private final ComponentId component;
+        private final DeviceId destination;
+
+        ResumedArrival(ComponentId component, DeviceId destination) {
+            this.component = component;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return component;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return null;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+
+    /*
+     * INPUT: Arguments of a storage system.
+     * FUNCTION: Checks, if arguments describe a correct storage system, in one sweep over componentPlacement.
+     * Placement of large inventories (at least LARGE_INVENTORY components) is swept in parallel by fork-join tasks.
+     * OUTPUT: Number of slots taken up by components placed on each device, so that the storage system does not
+     * count them again. Throws IllegalArgumentException, if arguments are not correct.
+     */
+    private static HashMap<DeviceId, Integer> checkArguments(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Map<ComponentId, Integer> componentSizes,
+            ConcurrencyMode mode,
+            Executor asyncExecutor,
+            PlacementStorage storage) {
 
         // Tests to check if method arguments are correct.
-        if (deviceTotalSlots == null || componentPlacement == null) {
+        if (deviceTotalSlots == null || componentPlacement == null || componentSizes == null || mode == null
+                || asyncExecutor == null || storage == null) {
             throw new IllegalArgumentException("Arguments cannot be null.");
         }
 
@@ -32,50 +276,70 @@ public final class StorageSystemFactory {
             throw new IllegalArgumentException("deviceTotalSlots cannot be an empty map.");
         }
 
-        // Tests, if there are devices without number of slots provided.
+        // Tests, if there are devices without number of slots provided or with number of slots less than one.
+        // Devices are numbered, so that components on each device are counted in an array.
+        HashMap<DeviceId, Integer> deviceIndex = new HashMap<>();
+        DeviceId[] devices = new DeviceId[deviceTotalSlots.size()];
+        int[] capacities = new int[deviceTotalSlots.size()];
+        int smallestCapacity = Integer.MAX_VALUE;
         for (Map.Entry<DeviceId, Integer> entry : deviceTotalSlots.entrySet()) {
             if (entry.getKey() == null || entry.getValue() == null) {
                 throw new IllegalArgumentException("Map deviceTotalSlots cannot contain null values.");
             }
+            if (entry.getValue() <= 0) {
+                throw new IllegalArgumentException("Number of slots cannot be negative.");
+            }
+            devices[deviceIndex.size()] = entry.getKey();
+            capacities[deviceIndex.size()] = entry.getValue();
+            deviceIndex.put(entry.getKey(), deviceIndex.size());
+            smallestCapacity = Math.min(smallestCapacity, entry.getValue());
         }
 
-        for (Map.Entry<ComponentId, DeviceId> entry : componentPlacement.entrySet()) {
+        // Tests, if each component fits on every device, so that no transfer waits for a device forever.
+        for (Map.Entry<ComponentId, Integer> entry : componentSizes.entrySet()) {
             if (entry.getKey() == null || entry.getValue() == null) {
-                throw new IllegalArgumentException("Map componentPlacement cannot contain null values.");
+                throw new IllegalArgumentException("Map componentSizes cannot contain null values.");
             }
-        }
-
-        // Test to check, if the number of slots is less than or equal to zero.
-        for (Map.Entry<DeviceId, Integer> entry : deviceTotalSlots.entrySet()) {
             if (entry.getValue() <= 0) {
-                throw new IllegalArgumentException("Number of slots cannot be negative.");
+                throw new IllegalArgumentException("Size of component has to be positive.");
+            }
+            if (entry.getValue() > smallestCapacity) {
+                throw new IllegalArgumentException("Component does not fit on every device.");
             }
         }
 
-        // Checks, if each component is placed on an existing device.
-        for (Map.Entry<ComponentId, DeviceId> entry : componentPlacement.entrySet()) {
-            if (!deviceTotalSlots.containsKey(entry.getValue())) {
-                throw new IllegalArgumentException("Component cannot be placed on a non-existing device.");
-            }
+        // Checks, if each component is placed on an existing device, and counts slots taken on each device.
+        Stream<Map.Entry<ComponentId, DeviceId>> components = componentPlacement.entrySet().stream();
+        if (componentPlacement.size() >= LARGE_INVENTORY) {
+            components = components.parallel();
         }
+        int[] occupied = components.collect(
+                () -> new int[devices.length],
+                (counts, entry) -> {
+                    if (entry.getKey() == null || entry.getValue() == null) {
+                        throw new IllegalArgumentException("Map componentPlacement cannot contain null values.");
+                    }
+                    Integer index = deviceIndex.get(entry.getValue());
+                    if (index == null) {
+                        throw new IllegalArgumentException("Component cannot be placed on a non-existing device.");
+                    }
+                    counts[index] += componentSizes.isEmpty() ? 1 : componentSizes.getOrDefault(entry.getKey(), 1);
+                },
+                (counts, other) -> {
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i] += other[i];
+                    }
+                });
 
         // Checks, if the number of slots on device is not exceeded.
-        for (Map.Entry<DeviceId, Integer> device : deviceTotalSlots.entrySet()) {
-            int slots = 0;
-            for (Map.Entry<ComponentId, DeviceId> component : componentPlacement.entrySet()) {
-                if (component.getValue().equals(device.getKey())) {
-                    slots++;
-                }
-            }
-            if (slots > device.getValue()) {
+        HashMap<DeviceId, Integer> deviceOccupancy = new HashMap<>();
+        for (int i = 0; i < devices.length; i++) {
+            if (occupied[i] > capacities[i]) {
                 throw new IllegalArgumentException("Number of slots on device exceeded.");
             }
+            deviceOccupancy.put(devices[i], occupied[i]);
         }
-
-        return new StorageSystemImplementation(
-                new HashMap<>(deviceTotalSlots),
-                new HashMap<>(componentPlacement)
-        );
+        return deviceOccupancy;
     }
 
 }
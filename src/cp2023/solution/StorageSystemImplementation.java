@@ -7,12 +7,18 @@
  */
 package cp2023.solution;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import cp2023.base.*;
 import cp2023.exceptions.*;
@@ -44,270 +50,1172 @@ public class StorageSystemImplementation implements StorageSystem {
         LEGAL, STARTED, ENDED_PREPARE, ENDED_PERFORM
     }
 
-    // Mutex for operating on a transfer and checking if it is legal.
-    // Only prepare() and perform() methods will be run in parallel.
-    private final Semaphore transferOperation = new Semaphore(1, true);
+    /*
+     * Enum for the concurrency mode of the system - see DeviceLocks.
+     * GLOBAL: All bookkeeping of transfers is serialized by one mutex.
+     * STRIPED: Transfers lock only their source and destination devices.
+     * LOCK_FREE: Like STRIPED, but transfers, which fit into free space and whose devices nobody waits for, claim
+     * their slots without any lock (see DeviceOccupancy).
+     */
+    public enum ConcurrencyMode {
+        GLOBAL, STRIPED, LOCK_FREE
+    }
+
+    /*
+     * Enum for the storage of component placement - see PlacementTable.
+     * HASH_MAP: Hash maps of ComponentId and DeviceId objects.
+     * PRIMITIVE: Open-addressing int -> int table, for large inventories.
+     * OFF_HEAP: The same table kept in direct memory, outside of the heap.
+     */
+    public enum PlacementStorage {
+        HASH_MAP, PRIMITIVE, OFF_HEAP
+    }
+
+    // Number of components of a drain job, whose transfers are planned and leave the drained device together.
+    static final int DRAIN_BATCH = 64;
 
     private final HashMap<DeviceId, Integer> deviceTotalSlots; // Capacity of each device.
-    private final HashMap<ComponentId, DeviceId> componentPlacement; // Current placement of each component.
-    private final ConcurrentHashMap<DeviceId, AtomicInteger> deviceTakenSlots; // Number of slots taken up by components on each device.
+    // Current placement of each component and components, which are being transferred.
+    private final PlacementTable componentPlacement;
+    // Size of components taking up more than one slot (capacity unit) of a device. Fixed for the system's lifetime.
+    private final HashMap<ComponentId, Integer> componentSizes;
+    // Number of slots taken up by components on each device, including slots reserved by incoming transfers
+    // and by leases (see reserve()), together with the number of transfers waiting for it (see DeviceOccupancy).
+    private final ConcurrentHashMap<DeviceId, DeviceOccupancy> deviceSlots;
 
-    // Set of pairs (component, boolean) - true if component is transferred, false otherwise.
-    private final HashMap<ComponentId, Boolean> isComponentTransferred;
+    // Queues for transfers waiting for space on each device, served by priority.
+    private final ConcurrentHashMap<DeviceId, DeviceQueue> deviceQueues;
 
-    // Queues for transfers waiting for space on each device.
-    private final ConcurrentHashMap<DeviceId, ConcurrentLinkedQueue<ComponentTransfer>> deviceQueues;
+    /*
+     * Index of started transfers for each source device, which have not freed their slots yet (they have not ended
+     * their prepare phase) and some of these slots are not taken by any waiting transfer (their unclaimed is positive),
+     * by their unclaimed slots. Index of a device is guarded by the lock of this device.
+     */
+    private final HashMap<DeviceId, TransferState.UnclaimedIndex> startedTransfers;
 
-    // "You cannot call prepare() on the place being freed by transfer X and then call perform() on the place of transfer Y."
-    // Value has to wait for Key to finish its phases (prepare()/perform()).
-    // <whoHasToAct, whoHasToWait>
-    private final ConcurrentHashMap<ComponentTransfer, ComponentTransfer> waitsFor;
+    private final TransfersGraph graph; // Directed graph of waiting MOVE transfers.
 
     /*
-     * transferPhaseLatches hashmap will be updated when component transfer is inserted into the deviceQueue,
-     * so transfers that do not have to wait for free space on destination device will never be put into this hashmap.
-     *
-     * EnumMap of latches for each ComponentTransfer will be of size 2.
-     * PREPARE latch is released, when component transfer can call prepare().
-     * PERFORM latch is release, when component transfer can call perform().
+     * Waiting MOVE transfers, which closed a cycle of transfers that does not fit on its devices (see fitCycle()).
+     * Their edges are not in the graph. They look for a cycle again, when slots are freed or a new MOVE transfer
+     * starts waiting. Modified only when all devices are locked.
      */
-    private final ConcurrentHashMap<ComponentTransfer, EnumMap<LatchPhase, CountDownLatch>> transferPhaseLatches;
+    private final Set<TransferState> blockedMoves;
+
+    /*
+     * MOVE transfers, whose PREPARE latches have been released, but which have not started leaving their source
+     * devices yet. Thread, which released them, makes them start leaving their sources on their behalf (see
+     * startChains()), once it has unlocked its devices, so that a chain of transfers waiting for each other's slots
+     * is released at once, instead of one transfer after its predecessor's thread has woken up.
+     */
+    private final ConcurrentLinkedQueue<TransferState> releasedMoves;
+
+    /*
+     * Locks guarding the bookkeeping of devices (deviceSlots, deviceQueues, startedTransfers, whoWaitsForMe).
+     * Only prepare() and perform() methods will be run in parallel in GLOBAL mode, while in STRIPED mode transfers
+     * between disjoint pairs of devices do not contend at all.
+     */
+    private final DeviceLocks locks;
+
+    // Executor running prepare() and perform() of transfers executed by executeAsync(transfer).
+    private final Executor asyncExecutor;
+
+    // Journal of placement changes, or null if placement is not persisted. Snapshots are taken on asyncExecutor.
+    private final PlacementJournal journal;
+
+    // Changes of componentPlacement are made through its history, from which snapshots are taken - see snapshot().
+    private final PlacementHistory history;
+
+    // Instrumentation of the system, or null if it is disabled - see enableMetrics().
+    private volatile StorageSystemMetrics metrics;
+
+    // Coordinator of the sharded system, whose shard this system is, or null - see joinCoordinator().
+    private ShardCoordinator coordinator;
+
+
+    public StorageSystemImplementation(Map<DeviceId, Integer> deviceTotalSlots,
+                                       Map<ComponentId, DeviceId> componentPlacement) {
+        this(deviceTotalSlots, componentPlacement, ConcurrencyMode.GLOBAL);
+    }
 
-    // Current step of any transfer inside the system.
-    private final ConcurrentHashMap<ComponentTransfer, TransferStep> transferStep;
+    public StorageSystemImplementation(Map<DeviceId, Integer> deviceTotalSlots,
+                                       Map<ComponentId, DeviceId> componentPlacement,
+                                       ConcurrencyMode mode) {
+        this(deviceTotalSlots, componentPlacement, mode, ForkJoinPool.commonPool());
+    }
 
-    private final TransfersGraph graph; // Directed graph of MOVE transfers.
+    public StorageSystemImplementation(Map<DeviceId, Integer> deviceTotalSlots,
+                                       Map<ComponentId, DeviceId> componentPlacement,
+                                       ConcurrencyMode mode,
+                                       Executor asyncExecutor) {
+        this(deviceTotalSlots, componentPlacement, mode, asyncExecutor, PlacementStorage.HASH_MAP);
+    }
 
+    public StorageSystemImplementation(Map<DeviceId, Integer> deviceTotalSlots,
+                                       Map<ComponentId, DeviceId> componentPlacement,
+                                       ConcurrencyMode mode,
+                                       Executor asyncExecutor,
+                                       PlacementStorage storage) {
+        this(deviceTotalSlots, componentPlacement, mode, asyncExecutor, storage, null);
+    }
 
-    public StorageSystemImplementation(HashMap<DeviceId, Integer> deviceTotalSlots,
-                                       HashMap<ComponentId, DeviceId> componentPlacement) {
-        this.deviceTotalSlots = deviceTotalSlots;
-        this.componentPlacement = componentPlacement;
-        this.transferPhaseLatches = new ConcurrentHashMap<>();
-        this.waitsFor = new ConcurrentHashMap<>();
-        this.transferStep = new ConcurrentHashMap<>();
+    // Storage system, which persists placement of components in the journal, starting with a snapshot.
+    public StorageSystemImplementation(Map<DeviceId, Integer> deviceTotalSlots,
+                                       Map<ComponentId, DeviceId> componentPlacement,
+                                       ConcurrencyMode mode,
+                                       Executor asyncExecutor,
+                                       PlacementStorage storage,
+                                       PlacementJournal journal) {
+        this(deviceTotalSlots, componentPlacement, Map.of(), mode, asyncExecutor, storage, journal, null);
+    }
 
-        // Initialize isComponentTransferred map - at the beginning all components are not transferred.
-        this.isComponentTransferred = new HashMap<>();
-        for (ComponentId component : componentPlacement.keySet()) {
-            this.isComponentTransferred.put(component, false);
+    /*
+     * Storage system, in which each component takes up its size in slots of a device (1 if its size is not given).
+     * Sizes are not persisted, so they are not supported together with a journal.
+     */
+    public StorageSystemImplementation(Map<DeviceId, Integer> deviceTotalSlots,
+                                       Map<ComponentId, DeviceId> componentPlacement,
+                                       Map<ComponentId, Integer> componentSizes,
+                                       ConcurrencyMode mode,
+                                       Executor asyncExecutor,
+                                       PlacementStorage storage) {
+        this(deviceTotalSlots, componentPlacement, componentSizes, mode, asyncExecutor, storage, null, null);
+    }
+
+    /*
+     * Storage system, for which StorageSystemFactory has already validated the arguments and counted slots taken
+     * on each device (deviceOccupancy), so that placement is swept only once more - when it is copied.
+     * If deviceOccupancy is null, slots are counted here.
+     */
+    StorageSystemImplementation(Map<DeviceId, Integer> deviceTotalSlots,
+                                Map<ComponentId, DeviceId> componentPlacement,
+                                Map<ComponentId, Integer> componentSizes,
+                                ConcurrencyMode mode,
+                                Executor asyncExecutor,
+                                PlacementStorage storage,
+                                PlacementJournal journal,
+                                Map<DeviceId, Integer> deviceOccupancy) {
+        this.deviceTotalSlots = new HashMap<>(deviceTotalSlots);
+        this.componentSizes = new HashMap<>();
+        for (Map.Entry<ComponentId, Integer> entry : componentSizes.entrySet()) {
+            if (entry.getValue() != 1) {
+                this.componentSizes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (storage == PlacementStorage.PRIMITIVE) {
+            this.componentPlacement = new PrimitivePlacementTable(deviceTotalSlots.keySet(), componentPlacement);
+        } else if (storage == PlacementStorage.OFF_HEAP) {
+            this.componentPlacement = new OffHeapPlacementTable(deviceTotalSlots.keySet(), componentPlacement);
+        } else {
+            this.componentPlacement = new HashPlacementTable(componentPlacement);
         }
+        this.history = new PlacementHistory(this.componentPlacement, this.deviceTotalSlots.keySet(), this::sizeOf);
 
-        // Initialize deviceTakenSlots map using componentPlacement map.
-        this.deviceTakenSlots = new ConcurrentHashMap<>();
-        for (Map.Entry<ComponentId, DeviceId> entry : componentPlacement.entrySet()) {
-            DeviceId device = entry.getValue();
-            if (deviceTakenSlots.containsKey(device)) {
-                deviceTakenSlots.get(device).incrementAndGet();
-            } else {
-                AtomicInteger slots = new AtomicInteger(1);
-                deviceTakenSlots.put(device, slots);
+        // Initialize deviceSlots map using componentPlacement map.
+        if (deviceOccupancy == null) {
+            HashMap<DeviceId, Integer> occupied = new HashMap<>();
+            for (DeviceId device : deviceTotalSlots.keySet()) {
+                occupied.put(device, 0);
+            }
+            for (Map.Entry<ComponentId, DeviceId> entry : componentPlacement.entrySet()) {
+                occupied.merge(entry.getValue(), sizeOf(entry.getKey()), Integer::sum);
             }
+            deviceOccupancy = occupied;
+        }
+        this.deviceSlots = new ConcurrentHashMap<>();
+        for (Map.Entry<DeviceId, Integer> entry : deviceTotalSlots.entrySet()) {
+            DeviceId device = entry.getKey();
+            deviceSlots.put(device, new DeviceOccupancy(entry.getValue(), deviceOccupancy.get(device)));
         }
 
-        // Initialize deviceQueues
+        // Initialize deviceQueues and startedTransfers
         this.deviceQueues = new ConcurrentHashMap<>();
+        this.startedTransfers = new HashMap<>();
+        int largestSize = 1;
+        for (int size : this.componentSizes.values()) {
+            largestSize = Math.max(largestSize, size);
+        }
         for (DeviceId device : deviceTotalSlots.keySet()) {
-            deviceQueues.put(device, new ConcurrentLinkedQueue<>());
+            deviceQueues.put(device, new DeviceQueue(deviceSlots.get(device)));
+            startedTransfers.put(device, new TransferState.UnclaimedIndex(largestSize));
         }
 
         // Initialize graph of transfers.
-        this.graph = new TransfersGraph(new LinkedList<>(deviceTotalSlots.keySet()));
+        this.graph = new TransfersGraph(deviceTotalSlots.keySet());
+        this.blockedMoves = ConcurrentHashMap.newKeySet();
+        this.releasedMoves = new ConcurrentLinkedQueue<>();
+
+        this.locks = new DeviceLocks(mode, deviceTotalSlots.keySet());
+        this.asyncExecutor = asyncExecutor;
+
+        this.journal = journal;
+        if (journal != null) {
+            journal.snapshot(this.deviceTotalSlots, this.componentPlacement);
+        }
     }
 
-    // semaphore.acquire() with exception handling.
-    private void acquire_semaphore(Semaphore semaphore) {
+    /*
+     * Enables metrics of the system (see StorageSystemMetrics), which count transfers admitted since now.
+     * OUTPUT: Metrics of the system. If they are already enabled, the same metrics are returned.
+     */
+    public StorageSystemMetrics enableMetrics() {
+        locks.lockAll();
         try {
-            semaphore.acquire();
-        } catch (InterruptedException e) {
-            // Exception thrown per project specification.
-            throw new RuntimeException("panic: unexpected thread interruption");
+            if (metrics == null) {
+                metrics = new StorageSystemMetrics(deviceTotalSlots.keySet(),
+                        device -> deviceQueues.get(device).size());
+            }
+            return metrics;
+        } finally {
+            locks.unlockAll();
         }
     }
 
+    // Disables metrics, so that the system does not record anything anymore.
+    public void disableMetrics() {
+        metrics = null;
+    }
+
+    // Returns metrics of the system, or null if they are disabled.
+    public StorageSystemMetrics getMetrics() {
+        return metrics;
+    }
+
     /*
-     * INPUT: ComponentTransfer object for which the latches need to be initialized.
-     * FUNCTION: Updates the 'transferPhaseLatches' map for the given transfer.
-     * It creates an EnumMap with two entries, one for each phase (PREPARE and PERFORM), and associates a new
-     * CountDownLatch with each phase. The CountDownLatch for each phase is initialized with a count of 1.
-     * OUTPUT: No explicit output. The function modifies the 'transferPhaseLatches' map as a side effect.
+     * Returns the device, on which the component is placed, or null if it is not placed on any device (also while
+     * it is between its source and destination devices). Does not wait for transfers of the component.
      */
-    private void init_transferPhaseLatch(ComponentTransfer transfer) {
-        EnumMap<LatchPhase, CountDownLatch> latches = new EnumMap<>(LatchPhase.class);
-        latches.put(LatchPhase.PREPARE, new CountDownLatch(1));
-        latches.put(LatchPhase.PERFORM, new CountDownLatch(1));
+    public DeviceId whereIs(ComponentId component) {
+        if (component == null) {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+        return componentPlacement.get(component);
+    }
+
+    /*
+     * Returns the number of slots of the device taken by components, reserved by incoming transfers and by leases.
+     * It is read together with the number of transfers waiting for the device (see queueDepth()) from one word, so
+     * both are read without any lock. Throws IllegalArgumentException, if the device does not exist.
+     */
+    public int occupancy(DeviceId device) {
+        return occupancyOf(device).takenSlots();
+    }
+
+    // Returns the number of transfers waiting for space on the device. Throws like occupancy().
+    public int queueDepth(DeviceId device) {
+        return occupancyOf(device).waitingTransfers();
+    }
 
-        transferPhaseLatches.put(transfer, latches);
+    /*
+     * Returns the number of waiting MOVE transfers, which are edges of the graph of transfers or are blocked (see
+     * blockedMoves). Tests check with it, that withdrawn and finished transfers leave nothing behind.
+     */
+    int waitingMoves() {
+        locks.lockAll();
+        try {
+            int[] edges = {blockedMoves.size()};
+            graph.forEachEdge(edge -> edges[0]++);
+            return edges[0];
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    private DeviceOccupancy occupancyOf(DeviceId device) {
+        if (device == null) {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+        DeviceOccupancy occupancy = deviceSlots.get(device);
+        if (occupancy == null) {
+            throw new IllegalArgumentException("Device does not exist.");
+        }
+        return occupancy;
+    }
+
+    /*
+     * Returns the placement of all components at one point in time during the call (so after all transfers, which
+     * have ended before the call) - see PlacementSnapshot. Transfers are not blocked: placement is copied, while
+     * transfers log their changes of placement, which are applied to the copy (see PlacementHistory). Snapshots are
+     * taken one at a time and take time proportional to the number of components.
+     */
+    public PlacementSnapshot snapshot() {
+        return history.snapshot();
     }
 
     @Override
     public void execute(ComponentTransfer transfer) throws TransferException {
-        // Check for IllegalTransferType - not an ADD/REMOVE/MOVE operation.
-        if (transfer.getSourceDeviceId() == null && transfer.getDestinationDeviceId() == null ) {
-            throw new IllegalTransferType(transfer.getComponentId());
+        TransferState state = admitTransfer(transfer);
+        if (state.step() == TransferStep.STARTED) {
+            preparePhase(state);
+            performPhase(state);
+
+            return; // ADD or MOVE transfer is finished - case of enough space on destination device.
+                    // REMOVE transfer is finished
         }
 
-        // Assign a transfer type.
-        TransferType transferType = assignTransferType(transfer);
-        DeviceId source = transfer.getSourceDeviceId();
-        DeviceId destination = transfer.getDestinationDeviceId();
+        // Where transfers will wait on latches? Answer: just before they call prepare() and perform() respectively,
+        awaitLatch(state, LatchPhase.PREPARE); // waits before calling prepare()
 
-        acquire_semaphore(transferOperation); // Acquire the mutex.
+        startWaitingTransfer(state);
+        preparePhase(state);
 
-        checkIfTransferIsLegal(transfer);
-        transferStep.put(transfer, TransferStep.LEGAL);
+        awaitLatch(state, LatchPhase.PERFORM); // waits before calling perform()
 
-        // REMOVE transfer if its legal, it is performed immediately. (It is always allowed.)
-        // OR
-        // If there is free space on the destination device, ADD/MOVE transfer starts.
-        if (transferType == TransferType.REMOVE ||
-                (deviceTakenSlots.get(destination).get() < deviceTotalSlots.get(destination)) ) {
-            if (destination != null)
-                deviceTakenSlots.get(destination).incrementAndGet(); // prevents race condition
+        performPhase(state);
+    } // End of execute()
 
-            if (source != null) {
-                lookForWaitingTransfers(transfer); // If waiting transfer is found, countDown() on its latch
+    /*
+     * INPUT: ComponentTransfer object and maximal time, for which it can wait for space on its destination device.
+     * FUNCTION: Like execute(), but a transfer, which still waits for space when the timeout elapses or the calling
+     * thread is interrupted, is withdrawn (see withdraw()) - neither prepare() nor perform() is called. Transfer,
+     * which has got its space, is executed to the end. Interrupt status of the thread is kept. Timeout too long to
+     * be represented in nanoseconds means no timeout.
+     * OUTPUT: True if the transfer has been executed, false if it has been withdrawn. Throws IllegalArgumentException,
+     * if the timeout is null - before the transfer is admitted.
+     */
+    public boolean execute(ComponentTransfer transfer, Duration timeout) throws TransferException {
+        if (timeout == null) {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+        long timeoutNanos = saturatedNanos(timeout);
+        boolean timed = timeoutNanos != Long.MAX_VALUE;
+        long deadline = System.nanoTime() + timeoutNanos; // Compared by difference, so overflow does no harm.
+        TransferState state = admitTransfer(transfer);
+        if (state.step() == TransferStep.STARTED) {
+            preparePhase(state);
+            performPhase(state);
+            return true;
+        }
+
+        boolean interrupted = false;
+        boolean released;
+        try {
+            released = awaitLatch(state, LatchPhase.PREPARE, timed, deadline);
+        } catch (InterruptedException e) {
+            interrupted = true;
+            released = false;
+        }
+        if (!released && withdraw(state)) {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        startWaitingTransfer(state);
+        preparePhase(state);
+        awaitLatch(state, LatchPhase.PERFORM);
+        performPhase(state);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    public CompletionStage<Void> executeAsync(ComponentTransfer transfer) {
+        return executeAsync(transfer, asyncExecutor);
+    }
+
+    /*
+     * INPUT: ComponentTransfer object and executor, which will run its prepare() and perform() methods.
+     * FUNCTION: Asynchronous version of execute(). The transfer is checked and admitted by the calling thread, but no
+     * thread is blocked while the transfer waits for its PREPARE and PERFORM latches - the next phase is scheduled
+     * on the executor as soon as its latch is released. Therefore, prepare() and perform() can be called by
+     * different threads of the executor.
+     * OUTPUT: CompletionStage completed when the transfer has ended its perform phase, or completed exceptionally
+     * with TransferException, if the transfer is not legal. Transfer is withdrawn, if the stage is cancelled
+     * or times out (see schedulePhases()).
+     */
+    public CompletionStage<Void> executeAsync(ComponentTransfer transfer, Executor executor) {
+        TransferState state;
+        try {
+            state = admitTransfer(transfer);
+        } catch (TransferException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return schedulePhases(state, executor);
+    }
+
+    public List<CompletionStage<Void>> executeAll(Collection<ComponentTransfer> transfers) {
+        return executeAll(transfers, asyncExecutor);
+    }
+
+    /*
+     * INPUT: Collection of ComponentTransfer objects and executor, which will run their prepare() and perform()
+     * methods.
+     * FUNCTION: Executes a batch of transfers asynchronously, like executeAsync(). All devices are locked once for the
+     * whole batch: transfers are checked and admitted in the order of the collection, as if they were executed one
+     * by one. Then waiting MOVE transfers of the batch look for cycles, so cycles formed only by transfers
+     * of the batch start right away.
+     * OUTPUT: List of outcomes, one for every transfer in the order of the collection. Outcome is completed when the
+     * transfer has ended its perform phase, or completed exceptionally with TransferException, if it is not legal.
+     */
+    public List<CompletionStage<Void>> executeAll(Collection<ComponentTransfer> transfers, Executor executor) {
+        ArrayList<CompletionStage<Void>> outcomes = new ArrayList<>(transfers.size());
+        ArrayList<TransferState> admitted = new ArrayList<>(transfers.size());
+
+        locks.lockAll();
+        try {
+            for (ComponentTransfer transfer : transfers) {
+                try {
+                    TransferState state = checkTransfer(transfer);
+                    TransferEvents.Admitted event = new TransferEvents.Admitted();
+                    event.begin();
+                    commitAdmitted(event, transfer, startOrEnqueue(state));
+                    admitted.add(state);
+                    outcomes.add(null); // Filled in, when all devices are unlocked.
+                } catch (TransferException e) {
+                    outcomes.add(CompletableFuture.failedFuture(e));
+                }
+            }
+
+            for (TransferState state : admitted) {
+                if (state.step() != TransferStep.STARTED && state.type == TransferType.MOVE) {
+                    resolveCycle(state);
+                }
+            }
+            retryBlockedCycles();
+        } finally {
+            locks.unlockAll();
+        }
+        startChains();
+
+        int next = 0;
+        for (int i = 0; i < outcomes.size(); i++) {
+            if (outcomes.get(i) == null) {
+                outcomes.set(i, schedulePhases(admitted.get(next), executor));
+                next++;
             }
+        }
+        return outcomes;
+    }
 
-            transferStep.put(transfer, TransferStep.STARTED);
+    public DrainJob drainDevice(DeviceId device, DrainPolicy policy) {
+        return drainDevice(device, policy, asyncExecutor);
+    }
 
-            transferOperation.release(); // Release the mutex.
+    /*
+     * INPUT: Device to be drained, policy planning a transfer for each component on the device and executor, which
+     * will run the job.
+     * FUNCTION: Evacuates all components placed on the device as one job. Components on the device are looked up
+     * once and split into batches of DRAIN_BATCH, which are run by the executor in parallel. Transfers of a batch are
+     * planned by the policy and checked, then all devices are locked once to admit them, like in executeAll().
+     * Started transfers are then run one by one by the task of the batch - each of them leaves the device as soon as
+     * its own prepare() ends, so that transfers waiting for its slot do not wait for the rest of the batch.
+     * Transfers, which have to wait, are scheduled like in executeAsync().
+     * Components, which are being transferred when their batch is planned, are not evacuated by the job.
+     * OUTPUT: DrainJob reporting progress of the evacuation. Throws IllegalArgumentException, if the device does not
+     * exist or an argument is null.
+     */
+    public DrainJob drainDevice(DeviceId device, DrainPolicy policy, Executor executor) {
+        if (device == null || policy == null || executor == null) {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+        if (!deviceTotalSlots.containsKey(device)) {
+            throw new IllegalArgumentException("Device does not exist.");
+        }
 
-            transfer.prepare();
-            transferStep.put(transfer, TransferStep.ENDED_PREPARE);
-            modifyMapsAfterPrepare(transfer);
+        ArrayList<ComponentId> components = new ArrayList<>();
+        componentPlacement.forEach((component, placement) -> {
+            if (device.equals(placement)) {
+                components.add(component);
+            }
+        });
 
-            transfer.perform();
-            transferStep.put(transfer, TransferStep.ENDED_PERFORM);
-            modifyMapsAfterPerform(transfer);
+        DrainJob job = new DrainJob(device, components.size());
+        for (int from = 0; from < components.size(); from += DRAIN_BATCH) {
+            List<ComponentId> batch = components.subList(from, Math.min(from + DRAIN_BATCH, components.size()));
+            executor.execute(() -> drainBatch(device, batch, policy, executor, job));
+        }
+        return job;
+    }
 
-            return; // ADD or MOVE transfer is finished - case of enough space on destination device.
-                    // REMOVE transfer is finished
+    /*
+     * Plans and runs transfers of a batch of components of a drain job. Transfer, which the policy fails to plan
+     * (or which is not legal), fails in the job, while the other transfers of the batch are still admitted, so that
+     * no component stays claimed. Job learns how each transfer has ended, even if one of its phases throws.
+     */
+    private void drainBatch(DeviceId device, List<ComponentId> batch, DrainPolicy policy, Executor executor,
+                            DrainJob job) {
+        ArrayList<TransferState> legal = new ArrayList<>(batch.size());
+        for (ComponentId component : batch) {
+            try {
+                ComponentTransfer transfer = policy.evacuate(component, device);
+                if (transfer == null) {
+                    throw new IllegalStateException("Drain policy has not planned a transfer of " + component + ".");
+                }
+                legal.add(checkTransfer(transfer)); // Claims the component.
+            } catch (TransferException e) {
+                job.transferFailed(e);
+            } catch (RuntimeException e) {
+                job.transferAbandoned(e);
+            }
         }
 
-        // Below is logic for executing transfer, when there is not enough space on the destination device
-        // and transfer type is ADD/MOVE
+        locks.lockAll();
+        try {
+            for (TransferState state : legal) {
+                TransferEvents.Admitted event = new TransferEvents.Admitted();
+                event.begin();
+                commitAdmitted(event, state.transfer, startOrEnqueue(state));
+            }
+            for (TransferState state : legal) {
+                if (state.step() != TransferStep.STARTED && state.type == TransferType.MOVE) {
+                    resolveCycle(state);
+                }
+            }
+            retryBlockedCycles();
+        } finally {
+            locks.unlockAll();
+        }
+        startChains();
 
-        // Where transfers will wait on latches? Answer: just before they call prepare() and perform() respectively,
-        init_transferPhaseLatch(transfer); // Initialize latches for transfer
-        deviceQueues.get(destination).add(transfer); // Add transfer to the waiting queue of the destination device
+        ArrayList<TransferState> started = new ArrayList<>(legal.size());
+        for (TransferState state : legal) {
+            if (state.step() == TransferStep.STARTED && device.equals(state.transfer.getSourceDeviceId())) {
+                started.add(state);
+            } else {
+                schedulePhases(state, executor).whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        job.transferEnded();
+                    } else {
+                        job.transferAbandoned(error);
+                    }
+                });
+            }
+        }
+        for (TransferState state : started) {
+            try {
+                preparePhase(state); // Frees the slot on the device right away.
+                performPhase(state);
+                job.transferEnded();
+            } catch (RuntimeException e) {
+                job.transferAbandoned(e);
+            }
+        }
+    }
+
+    /*
+     * INPUT: State of an admitted transfer, executor running its phases.
+     * FUNCTION: Schedules prepare() and perform() of the transfer on the executor, each as soon as its latch is
+     * released (right away, if the transfer has already started).
+     * OUTPUT: CompletableFuture completed when the transfer has ended its perform phase. Cancelling it (or timing
+     * it out) withdraws the transfer, if it still waits for space, but never stops a transfer, which has started.
+     */
+    private CompletableFuture<Void> schedulePhases(TransferState state, Executor executor) {
+        // Caller gets a copy of the last phase, because a cancelled stage would not run its phase anymore.
+        if (state.step() == TransferStep.STARTED) {
+            return CompletableFuture.runAsync(() -> {
+                preparePhase(state);
+                performPhase(state);
+            }, executor).copy();
+        }
+
+        CompletableFuture<Void> outcome = latchStage(state, LatchPhase.PREPARE)
+                .thenRunAsync(() -> {
+                    startWaitingTransfer(state);
+                    preparePhase(state);
+                }, executor)
+                .thenCompose(prepared -> latchStage(state, LatchPhase.PERFORM))
+                .thenRunAsync(() -> performPhase(state), executor)
+                .copy();
+        // Outcome cancelled by its caller (cancel(), orTimeout()) withdraws the transfer, if it still waits for space.
+        // Otherwise, the transfer is executed to the end anyway.
+        outcome.whenComplete((result, failure) -> {
+            if (failure instanceof CancellationException || failure instanceof TimeoutException) {
+                withdraw(state);
+            }
+        });
+        return outcome;
+    }
+
+    /*
+     * Returns a stage completed, when the latch of the transfer is released. If metrics or TransferWait events are
+     * enabled, the returned stage also records the waiting time.
+     */
+    private CompletableFuture<Void> latchStage(TransferState state, LatchPhase phase) {
+        ComponentTransfer transfer = state.transfer;
+        CompletableFuture<Void> latch = state.latchStage(phase);
+        StorageSystemMetrics metrics = this.metrics;
+        TransferEvents.Wait event = new TransferEvents.Wait();
+        if (metrics == null && !event.isEnabled()) {
+            return latch;
+        }
+
+        long start = System.nanoTime();
+        event.begin();
+        return latch.thenRun(() -> {
+            if (metrics != null) {
+                metrics.recordWait(phase, System.nanoTime() - start);
+            }
+            commitWait(event, transfer, phase);
+        });
+    }
+
+    // Waits for the latch until the deadline, or without one if not timed. Waiting time of a released latch is
+    // recorded in metrics.
+    private boolean awaitLatch(TransferState state, LatchPhase phase, boolean timed, long deadline)
+            throws InterruptedException {
+        StorageSystemMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        TransferEvents.Wait event = new TransferEvents.Wait();
+        event.begin();
+        if (!timed) {
+            state.awaitLatch(phase);
+        } else if (!state.awaitLatch(phase, deadline)) {
+            return false;
+        }
+        if (metrics != null) {
+            metrics.recordWait(phase, System.nanoTime() - start);
+        }
+        commitWait(event, state.transfer, phase);
+        return true;
+    }
+
+    /*
+     * INPUT: State of an admitted transfer. No device can be locked.
+     * FUNCTION: Withdraws the transfer, if it still waits for space on its destination device (its PREPARE latch
+     * has not been released): removes it from the queue of the device, from the graph of transfers and from blocked
+     * MOVE transfers, and releases its component. Waiting transfer has not claimed any space and nobody waits for it,
+     * so no chain of waiting transfers has to be changed. MOVE transfers lock all devices, like when they look for
+     * a cycle, so they cannot be withdrawn while they are a part of one.
+     * OUTPUT: True if the transfer has been withdrawn, false if it has already got its space.
+     */
+    private boolean withdraw(TransferState state) {
+        DeviceId destination = state.transfer.getDestinationDeviceId();
+        if (state.type == TransferType.MOVE) {
+            locks.lockAll();
+        } else {
+            locks.lock(destination);
+        }
+        try {
+            if (state.isLatchReleased(LatchPhase.PREPARE)) {
+                return false;
+            }
+            deviceQueues.get(destination).remove(state);
+            if (state.type == TransferType.MOVE) {
+                graph.removeEdge(state);
+                blockedMoves.remove(state);
+            }
+            componentPlacement.release(state.transfer.getComponentId());
+            return true;
+        } finally {
+            if (state.type == TransferType.MOVE) {
+                locks.unlockAll();
+            } else {
+                locks.unlock(destination);
+            }
+        }
+    }
+
+    private static void commitWait(TransferEvents.Wait event, ComponentTransfer transfer, LatchPhase phase) {
+        if (event.shouldCommit()) {
+            event.setTransfer(transfer);
+            event.phase = phase.name();
+            event.commit();
+        }
+    }
+
+    /*
+     * INPUT: ComponentTransfer object which is being executed.
+     * FUNCTION: Checks if the transfer is legal. REMOVE transfer and ADD/MOVE transfer with free space on the
+     * destination device are started immediately. Otherwise, the transfer is put into the waiting queue of its
+     * destination device, where it waits for its latches.
+     * OUTPUT: State of the transfer. Its step is STARTED if the transfer can call prepare(), LEGAL if it has to wait
+     * for its latches.
+     */
+    TransferState admitTransfer(ComponentTransfer transfer) throws TransferException {
+        TransferState state = checkTransfer(transfer);
+        TransferEvents.Admitted event = new TransferEvents.Admitted();
+        event.begin();
+
+        DeviceId source = transfer.getSourceDeviceId();
+        DeviceId destination = transfer.getDestinationDeviceId();
+
+        boolean started = locks.getMode() == ConcurrencyMode.LOCK_FREE && startWithoutLocks(state);
+        if (!started) {
+            locks.lock(source, destination); // Lock source and destination devices.
+            started = startOrEnqueue(state);
+            locks.unlock(source, destination); // Unlock the devices.
+        }
+        commitAdmitted(event, transfer, started);
 
         // MOVE transfers that are waiting in the deviceQueue look for a cycle
-        if (transferType == TransferType.MOVE) {
-            // Modifies graph and if cycle is found, countDown() all PREPARE latches for transfers inside the cycle.
-            lookForCycle(transfer);
+        if (!started && state.type == TransferType.MOVE) {
+            // Modifies graph and if cycle is found, releases all PREPARE latches for transfers inside the cycle.
+            lookForCycle(state);
+        }
+        startChains();
+
+        return state;
+    }
+
+    private static void commitAdmitted(TransferEvents.Admitted event, ComponentTransfer transfer, boolean started) {
+        if (event.shouldCommit()) {
+            event.setTransfer(transfer);
+            event.started = started;
+            event.commit();
+        }
+    }
+
+    /*
+     * Checks if the transfer is legal. From now on, the component belongs to this transfer.
+     * OUTPUT: State of the legal transfer.
+     */
+    TransferState checkTransfer(ComponentTransfer transfer) throws TransferException {
+        // Check for IllegalTransferType - not an ADD/REMOVE/MOVE operation.
+        if (transfer.getSourceDeviceId() == null && transfer.getDestinationDeviceId() == null ) {
+            throw new IllegalTransferType(transfer.getComponentId());
         }
 
-        // Check transferStep of all transfers with a given source
-        ComponentTransfer started = lookForStartedTransfers(destination);
-        if (started != null) {
-            deviceQueues.get(destination).remove(transfer);
-            waitsFor.put(started, transfer);
-            transferPhaseLatches.get(transfer).get(LatchPhase.PREPARE).countDown();
+        TransferState state = new TransferState(transfer, assignTransferType(transfer));
+        checkIfTransferIsLegal(state); // New state has step LEGAL.
+        return state;
+    }
+
+    /*
+     * INPUT: State of a legal transfer. No device can be locked.
+     * FUNCTION: Fast path of admission in LOCK_FREE mode. Starts the transfer without any lock, if no transfer waits
+     * for its source or destination device and its component fits into free space on its destination device, which
+     * is claimed by a compare-and-set of the occupancy word of the device (see DeviceOccupancy). Its slot on the
+     * source device is not offered to transfers, which start waiting for the device before it ends its prepare
+     * phase - they wait until then.
+     * OUTPUT: True if the transfer has started, false if it has to be admitted under the locks of its devices.
+     */
+    private boolean startWithoutLocks(TransferState state) {
+        ComponentTransfer transfer = state.transfer;
+        if (transfer instanceof LeasedTransfer) {
+            return false;
+        }
+        DeviceId source = transfer.getSourceDeviceId();
+        DeviceId destination = transfer.getDestinationDeviceId();
+        if (source != null && deviceSlots.get(source).waitingTransfers() > 0) {
+            return false; // Slot of the transfer is offered to waiting transfers under the lock.
+        }
+        int size = sizeOf(transfer.getComponentId());
+        if (destination != null && !deviceSlots.get(destination).tryTakeUnlocked(size)) {
+            return false;
+        }
+
+        if (source != null) {
+            state.unclaimed = size; // Nobody can wait for us, as we are not on startedTransfers.
+            state.lockFree = true;
+        }
+        state.setStep(TransferStep.STARTED);
+        StorageSystemMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordAdmission(destination, true);
+        }
+        return true;
+    }
+
+    /*
+     * INPUT: State of a legal transfer. Its source and destination devices have to be locked.
+     * FUNCTION: Starts the transfer, if it is a REMOVE or its component fits into free space on its destination
+     * device. Otherwise, puts it into the waiting queue of the destination device, where it can be taken over right
+     * away by a transfer that has started leaving this device.
+     * OUTPUT: True if the transfer has started, false if it has to wait for its latches.
+     */
+    private boolean startOrEnqueue(TransferState state) {
+        ComponentTransfer transfer = state.transfer;
+        DeviceId source = transfer.getSourceDeviceId();
+        DeviceId destination = transfer.getDestinationDeviceId();
+        DeviceOccupancy destinationSlots = destination == null ? null : deviceSlots.get(destination);
+        int size = sizeOf(transfer.getComponentId());
+
+        // Slots reserved by a lease are already taken, so the transfer only takes them from the lease. Lease issued
+        // by another system (or shard) has taken slots there, not here, so the transfer is admitted like any other.
+        boolean leased = destination != null && transfer instanceof LeasedTransfer leasedTransfer
+                && leasedTransfer.getLease().isIssuedBy(this) && leasedTransfer.getLease().take(destination, size);
+
+        // REMOVE transfer if its legal, it is performed immediately. (It is always allowed.)
+        // OR
+        // If there is enough free space on the destination device (or in the lease), ADD/MOVE transfer starts.
+        // Slots are claimed atomically, as they can be claimed without locks in LOCK_FREE mode at the same time.
+        if (state.type == TransferType.REMOVE || leased || destinationSlots.tryTake(size)) {
+            if (source != null) {
+                startLeaving(state); // If waiting transfers fit into the freed space, release their PREPARE latches
+            }
+
+            state.setStep(TransferStep.STARTED);
+            StorageSystemMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.recordAdmission(destination, true);
+            }
+            return true;
         }
 
-        transferOperation.release(); // release the mutex
+        // Below is logic for admitting transfer, when there is not enough space on the destination device
+        // and transfer type is ADD/MOVE
+
+        deviceQueues.get(destination).add(state); // Add transfer to the waiting queue of the destination device
+        TransferEvents.queued(transfer);
 
-        awaitLatch(transferPhaseLatches.get(transfer).get(LatchPhase.PREPARE)); // waits before calling prepare()
+        // Check if some transfer has already started leaving the destination device and nobody took its place.
+        serveWaitingTransfers(destination, transfer);
 
-        if (transferType == TransferType.MOVE) {
-            acquire_semaphore(transferOperation);
-            lookForWaitingTransfers(transfer); // If waiting transfer is found, countDown() on latch
-            transferOperation.release();
+        StorageSystemMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordAdmission(destination, false);
         }
+        return false;
+    }
 
-        transferStep.put(transfer, TransferStep.STARTED);
-        transfer.prepare();
-        transferStep.put(transfer, TransferStep.ENDED_PREPARE);
-        modifyMapsAfterPrepare(transfer);
+    /*
+     * INPUT: State of a transfer, whose PREPARE latch has just been released, or of a REMOVE transfer, which
+     * carries the component of a MOVE transfer to another shard and whose arrival has got its space
+     * (see ShardCoordinator).
+     * FUNCTION: Starts the transfer. MOVE transfer frees a slot on its source device, so a transfer waiting for
+     * this slot is looked for.
+     * OUTPUT: No explicit output. Modifies the state of the transfer and startedTransfers as a side effect.
+     */
+    void startWaitingTransfer(TransferState state) {
+        if (state.type != TransferType.ADD) {
+            DeviceId source = state.transfer.getSourceDeviceId();
+            locks.lock(source);
+            // Transfers released as a part of a cycle already know who takes their place on the source device.
+            if (state.unclaimed < 0) {
+                startLeaving(state); // If waiting transfers fit into the freed space, release their PREPARE latches
+            }
+            state.setStep(TransferStep.STARTED);
+            locks.unlock(source);
+            startChains();
+        } else {
+            state.setStep(TransferStep.STARTED);
+        }
+    }
 
-        awaitLatch(transferPhaseLatches.get(transfer).get(LatchPhase.PERFORM)); // waits before calling perform()
+    // Calls prepare() of a started transfer and updates maps.
+    void preparePhase(TransferState state) {
+        TransferEvents.Phase event = new TransferEvents.Phase();
+        event.begin();
+        state.transfer.prepare();
+        commitPhase(event, state.transfer, LatchPhase.PREPARE);
+        modifyMapsAfterPrepare(state);
+    }
 
-        transfer.perform();
-        transferStep.put(transfer, TransferStep.ENDED_PERFORM);
-        modifyMapsAfterPerform(transfer);
-    } // End of execute()
+    // Calls perform() of a prepared transfer and updates maps.
+    void performPhase(TransferState state) {
+        TransferEvents.Phase event = new TransferEvents.Phase();
+        event.begin();
+        state.transfer.perform();
+        commitPhase(event, state.transfer, LatchPhase.PERFORM);
+        state.setStep(TransferStep.ENDED_PERFORM);
+        modifyMapsAfterPerform(state);
+    }
+
+    private static void commitPhase(TransferEvents.Phase event, ComponentTransfer transfer, LatchPhase phase) {
+        if (event.shouldCommit()) {
+            event.setTransfer(transfer);
+            event.phase = phase.name();
+            event.commit();
+        }
+    }
 
     /*
-     * INPUT: ArrayList of ComponentTransfer objects representing a cycle in the graph of transfers.
-     * FUNCTION: Updates the 'waitsFor' map for all transfers in the cycle.
-     * For each transfer in the cycle, it sets the next transfer in the cycle as the one it waits for in 'waitsFor' map.
-     * The last transfer in the cycle waits for the first one, closing the cycle.
-     * OUTPUT: No explicit output. The function modifies the 'waitsFor' map as a side effect.
+     * INPUT: Waiting transfers and transfers leaving devices, whose places they take: entering.get(i) takes the place
+     * of leaving.get(i) on the source device of the latter, which is the destination device of the former. Each
+     * entering transfer fits in place of its leaving transfer (see fitCycle()). Devices of both have to be locked.
+     * FUNCTION: Updates whoWaitsForMe of the leaving transfers, which start leaving their source devices.
+     * Each entering transfer takes free space on its destination device first and the rest of its size from the space
+     * freed by its leaving transfer. Space of the leaving transfer, which is left unclaimed, can be claimed
+     * by transfers waiting for the device.
+     * OUTPUT: No explicit output. The function modifies states of the transfers, deviceSlots
+     * and startedTransfers as a side effect.
      */
-    private void cycleTransfers_waitsFor_Update(ArrayList<ComponentTransfer> cycle) {
-        int cycleSize = cycle.size();
-        for (int i = 0; i < cycleSize; i++) {
-            ComponentTransfer currentTransfer = cycle.get(i);
+    private void takePlaces(List<TransferState> entering, List<TransferState> leaving) {
+        // Free slots are taken while entering transfers still wait for the devices, so nobody takes them without locks.
+        int[] fromFreeSlots = new int[entering.size()];
+        for (int i = 0; i < entering.size(); i++) {
+            TransferState transfer = entering.get(i);
+            int size = sizeOf(transfer.transfer.getComponentId());
+            fromFreeSlots[i] = deviceSlots.get(transfer.transfer.getDestinationDeviceId()).takeFree(size);
+        }
+        for (TransferState transfer : entering) {
+            // Remove transfer from the queue of its destination device, before it can be put on startedTransfers.
+            deviceQueues.get(transfer.transfer.getDestinationDeviceId()).remove(transfer);
+        }
+        for (TransferState transfer : leaving) {
+            transfer.unclaimed = sizeOf(transfer.transfer.getComponentId()); // Transfers start leaving their sources.
+        }
 
-            // Remove transfer from the queue
-            deviceQueues.get(currentTransfer.getSourceDeviceId()).remove();
+        for (int i = 0; i < entering.size(); i++) {
+            TransferState currentTransfer = entering.get(i);
+            DeviceId destination = currentTransfer.transfer.getDestinationDeviceId();
 
-            // Get the next transfer in the cycle, wrap around to the first element if at the end
-            ComponentTransfer nextTransfer = cycle.get((i + 1) % cycleSize);
-            waitsFor.put(nextTransfer, currentTransfer);
+            TransferState nextTransfer = leaving.get(i);
+            int size = sizeOf(currentTransfer.transfer.getComponentId());
+            nextTransfer.unclaimed -= size - fromFreeSlots[i];
+            waitFor(currentTransfer, nextTransfer);
+            if (nextTransfer.unclaimed > 0) {
+                startedTransfers.get(destination).add(nextTransfer);
+            }
         }
     }
 
-    private ComponentTransfer lookForStartedTransfers(DeviceId source) {
-        for (Map.Entry<ComponentTransfer, TransferStep> entry : transferStep.entrySet()) {
-            ComponentTransfer transfer = entry.getKey();
-            if (transfer.getSourceDeviceId() != null) {
-                TransferStep step = entry.getValue();
+    /*
+     * INPUT: ArrayList of TransferState objects representing a cycle in the graph of transfers.
+     * FUNCTION: Checks if each transfer of the cycle fits into free space on its destination device together with
+     * the space freed by the next transfer of the cycle, which leaves this device. Transfers of the cycle, except for
+     * the first one, can be replaced by other transfers waiting to move between the same devices: each time, the one
+     * with the smallest component, which the previous transfer fits in place of, is chosen.
+     * OUTPUT: True if the cycle (possibly with replaced transfers) fits. Always true, if all components take up
+     * one slot.
+     */
+    private boolean fitCycle(ArrayList<TransferState> cycle) {
+        if (componentSizes.isEmpty()) {
+            return true; // Each transfer fits into the slot freed by the next one.
+        }
 
-                if (transfer.getSourceDeviceId().equals(source) &&
-                        (step == TransferStep.STARTED ||
-                                step == TransferStep.ENDED_PREPARE || step == TransferStep.ENDED_PERFORM) &&
-                        !waitsFor.containsKey(transfer)) {
-                    return transfer;
+        int cycleSize = cycle.size();
+        for (int i = 1; i < cycleSize; i++) {
+            TransferState previousTransfer = cycle.get(i - 1);
+            int neededSlots = sizeOf(previousTransfer.transfer.getComponentId())
+                    - freeSlots(previousTransfer.transfer.getDestinationDeviceId());
+            TransferState chosen = null;
+            for (TransferState parallel : graph.parallelEdges(cycle.get(i))) {
+                int size = sizeOf(parallel.transfer.getComponentId());
+                if (size >= neededSlots && (chosen == null || size < sizeOf(chosen.transfer.getComponentId()))) {
+                    chosen = parallel;
                 }
             }
+            if (chosen == null) {
+                return false;
+            }
+            cycle.set(i, chosen);
         }
-        return null;
+
+        TransferState lastTransfer = cycle.get(cycleSize - 1);
+        return sizeOf(lastTransfer.transfer.getComponentId())
+                <= freeSlots(lastTransfer.transfer.getDestinationDeviceId())
+                + sizeOf(cycle.get(0).transfer.getComponentId());
     }
 
+    // Returns the number of slots on the device, which are neither taken nor reserved.
+    private int freeSlots(DeviceId device) {
+        return deviceSlots.get(device).freeSlots();
+    }
 
-    // latch.await() with exception handling.
-    private void awaitLatch(CountDownLatch latch) {
+    // Waits for the latch of the given phase with exception handling. Waiting time is recorded in metrics.
+    void awaitLatch(TransferState state, LatchPhase phase) {
+        ComponentTransfer transfer = state.transfer;
+        StorageSystemMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        TransferEvents.Wait event = new TransferEvents.Wait();
+        event.begin();
         try {
-            latch.await();
+            state.awaitLatch(phase);
+            if (metrics != null) {
+                metrics.recordWait(phase, System.nanoTime() - start);
+            }
+            commitWait(event, transfer, phase);
         } catch (InterruptedException e) {
             // Exception thrown per project specification.
             throw new RuntimeException("panic: unexpected thread interruption");
         }
     }
 
-    // Look for transfer inside source device queue and then if found, countDown() its PREPARE latch.
-    private void lookForWaitingTransfers(ComponentTransfer transfer) {
-        DeviceId source = transfer.getSourceDeviceId();
+    // Transfer starts leaving its source device, so transfers waiting for this device can claim its space.
+    // Source device of the transfer has to be locked.
+    private void startLeaving(TransferState state) {
+        DeviceId source = state.transfer.getSourceDeviceId();
+        state.unclaimed = sizeOf(state.transfer.getComponentId());
+        startedTransfers.get(source).add(state); // Nobody waits for us yet.
+        serveWaitingTransfers(source, state.transfer);
+    }
+
+    /*
+     * INPUT: Device, which has to be locked, and the transfer, which has freed space on it or started leaving it
+     * (null if space was returned by a lease).
+     * FUNCTION: Releases transfers waiting in the queue of the device, which fit, in the order of the queue.
+     * Transfer fits into free space on the device - then both of its latches are released. Otherwise, it fits into
+     * free space together with space not claimed yet by one of the transfers leaving the device - then it waits for
+     * this transfer to end its prepare phase, before it can call perform().
+     * Smaller components can overtake a larger one, which does not fit yet, so that no transfer waits for space,
+     * which it fits into. If all components take up one slot, only the first waiting transfer can fit, so sizes are
+     * not looked at.
+     * OUTPUT: No explicit output. Modifies the queue, startedTransfers and deviceSlots of the device.
+     */
+    private void serveWaitingTransfers(DeviceId device, ComponentTransfer releasedBy) {
+        DeviceQueue queue = deviceQueues.get(device);
+        TransferState.UnclaimedIndex started = startedTransfers.get(device);
+        DeviceOccupancy slots = deviceSlots.get(device);
+
+        while (queue.size() > 0) {
+            int freeSlots = slots.freeSlots();
+            int availableSlots = freeSlots + started.largestUnclaimed();
+            if (availableSlots == 0) {
+                return; // Every component takes up at least one slot.
+            }
+            TransferState waiting = queue.first();
+            int size = 1;
+            if (!componentSizes.isEmpty()) {
+                while (waiting != null && (size = sizeOf(waiting.transfer.getComponentId())) > availableSlots) {
+                    waiting = queue.next(waiting);
+                }
+                if (waiting == null) {
+                    return; // No waiting transfer fits yet.
+                }
+            }
+
+            // Slots are taken before the transfer leaves the queue, so that nobody can take them without locks.
+            slots.take(Math.min(size, freeSlots));
+            queue.serve(waiting);
+            if (waiting.type == TransferType.MOVE) {
+                graph.removeEdge(waiting); // It does not wait anymore, so it cannot be a part of a cycle.
+                releasedMoves.add(waiting); // Transfers waiting for its slot are released by startChains().
+            }
+
+            // Transfer waiting for us can call prepare()
+            if (size <= freeSlots) {
+                TransferEvents.latchReleased(waiting.transfer, LatchPhase.PREPARE, TransferEvents.FREED_SLOT,
+                        releasedBy);
+                waiting.releaseLatch(LatchPhase.PREPARE);
+                TransferEvents.latchReleased(waiting.transfer, LatchPhase.PERFORM, TransferEvents.FREED_SLOT,
+                        releasedBy);
+                waiting.releaseLatch(LatchPhase.PERFORM);
+            } else {
+                // Leaving transfer leaves the index, once nobody else can wait for it.
+                TransferState leaving = started.claim(size - freeSlots);
+                waitFor(waiting, leaving);
+                TransferEvents.latchReleased(waiting.transfer, LatchPhase.PREPARE, TransferEvents.FREED_SLOT,
+                        leaving.transfer);
+                waiting.releaseLatch(LatchPhase.PREPARE);
+            }
+        }
+    }
 
-        // Transfer waiting for us can call prepare()
-        ComponentTransfer whoWaitsForMe = deviceQueues.get(source).poll();
-        if (whoWaitsForMe != null) {
-            waitsFor.put(transfer, whoWaitsForMe);
-            transferPhaseLatches.get(whoWaitsForMe).get(LatchPhase.PREPARE).countDown();
+    // Waiting transfer takes space freed by the leaving transfer, so it waits for its prepare phase to end.
+    private static void waitFor(TransferState waiting, TransferState leaving) {
+        waiting.nextWhoWaits = leaving.whoWaitsForMe;
+        leaving.whoWaitsForMe = waiting;
+    }
+
+    /*
+     * Looks for cycle and then if found, release all PREPARE latches for transfers inside the cycle.
+     * Cycle spans queues of many devices, so all of them are locked.
+     */
+    private void lookForCycle(TransferState state) {
+        locks.lockAll();
+        resolveCycle(state);
+        retryBlockedCycles();
+        locks.unlockAll();
+
+        // In a sharded system, the cycle can also pass through devices of other shards.
+        ShardCoordinator coordinator = this.coordinator;
+        if (coordinator != null && !state.isLatchReleased(LatchPhase.PREPARE)) {
+            coordinator.resolveCycles();
         }
     }
 
-    // Looks for cycle and then if found, countDown() all PREPARE latches for transfers inside the cycle.
-    private void lookForCycle(ComponentTransfer transfer) {
-        graph.addEdge(transfer);
+    // Looks for cycle closed by the waiting MOVE transfer and resolves it. All devices have to be locked.
+    private void resolveCycle(TransferState state) {
+        // Transfer could have been released after its devices were unlocked - then it does not wait anymore.
+        if (!state.isLatchReleased(LatchPhase.PREPARE)) {
+            // Look for a cycle withing graph of transfers, closed by the edge of the transfer.
+            ArrayList<TransferState> cycle = graph.addEdge(state);
+
+            if (!cycle.isEmpty()) {
+                if (!fitCycle(cycle)) {
+                    // Edge of the transfer is removed, so that the graph stays acyclic. Transfer looks for a cycle
+                    // again (see retryBlockedCycles()), when space is freed or another MOVE transfer starts waiting.
+                    graph.removeEdge(state);
+                    blockedMoves.add(state);
+                    return;
+                }
+
+                releaseCycle(cycle, state);
+            }
+        }
+    }
 
-        // Look for a cycle withing graph of transfers.
-        ArrayList<ComponentTransfer> cycle = new ArrayList<>(graph.cycleOfTransfers(transfer));
+    /*
+     * INPUT: Cycle of waiting transfers, which fits on its devices, and the transfer, which has closed it.
+     * All devices have to be locked.
+     * FUNCTION: Releases PREPARE latches of all transfers of the cycle and removes their edges from the graph.
+     * Space left on devices of the cycle is offered to other waiting transfers.
+     * OUTPUT: No explicit output.
+     */
+    private void releaseCycle(ArrayList<TransferState> cycle, TransferState closedBy) {
+        StorageSystemMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordCycle(cycle.size());
+        }
+
+        // Each transfer of the cycle takes the place of the next one, the last one takes the place of the first one.
+        ArrayList<TransferState> leaving = new ArrayList<>(cycle.subList(1, cycle.size()));
+        leaving.add(cycle.get(0));
+        releaseInPlaceOf(cycle, leaving, closedBy.transfer);
+    }
+
+    /*
+     * INPUT: Waiting transfers, transfers leaving devices, whose places they take (see takePlaces()), and
+     * the transfer, which has closed their cycle. All devices have to be locked.
+     * FUNCTION: Releases PREPARE latches of the waiting transfers and removes their edges from the graph, while the
+     * leaving transfers start leaving their devices. Space left on these devices is offered to other waiting
+     * transfers. Waiting and leaving transfers of a cycle are the same, unless it spans shards of a sharded system -
+     * then the leaving transfers of its other shards are released by them (see ShardCoordinator).
+     * OUTPUT: No explicit output.
+     */
+    void releaseInPlaceOf(List<TransferState> entering, List<TransferState> leaving, ComponentTransfer closedBy) {
+        // Update whoWaitsForMe of all transfers in a cycle
+        takePlaces(entering, leaving);
+
+        // Call prepare() in all transfers in a cycle
+        for (TransferState cycle_transfer : entering) {
+            if (cycle_transfer.type == TransferType.MOVE) {
+                graph.removeEdge(cycle_transfer);
+                blockedMoves.remove(cycle_transfer);
+            }
+            // Transfer that starts the cycle releases its own PREPARE latch.
+            TransferEvents.latchReleased(cycle_transfer.transfer, LatchPhase.PREPARE, TransferEvents.CYCLE, closedBy);
+            cycle_transfer.releaseLatch(LatchPhase.PREPARE);
+        }
+
+        // Space left on devices of the cycle can be taken by other waiting transfers.
+        for (TransferState cycle_transfer : leaving) {
+            DeviceId source = cycle_transfer.transfer.getSourceDeviceId();
+            if (cycle_transfer.unclaimed > 0 || freeSlots(source) > 0) {
+                serveWaitingTransfers(source, closedBy);
+            }
+        }
+    }
 
-        if (!cycle.isEmpty()) {
-            // Update waitsFor map for all transfers in a cycle
-            cycleTransfers_waitsFor_Update(cycle);
+    /*
+     * FUNCTION: Blocked MOVE transfers look for cycles once again, all of them in one pass (see
+     * TransfersGraph.findCycles()): unlike addEdge(), which finds any one cycle closed by a transfer, every path
+     * back to the blocked transfer is searched for one, whose transfers fit in place of each other. Cycles found
+     * have disjoint devices, so they are all released. Transfers, which have been given space meanwhile, are not
+     * blocked anymore. All devices have to be locked.
+     * OUTPUT: No explicit output. Modifies blockedMoves and the graph as a side effect.
+     */
+    private void retryBlockedCycles() {
+        if (blockedMoves.isEmpty()) {
+            return;
+        }
+        blockedMoves.removeIf(state -> state.isLatchReleased(LatchPhase.PREPARE));
 
-            // Call prepare() in all transfers in a cycle
-            for (ComponentTransfer cycle_transfer : cycle) {
-                // Transfer that starts the cycle calls countDown() on its own PREPARE latch.
-                transferPhaseLatches.get(cycle_transfer).get(LatchPhase.PREPARE).countDown();
+        for (ArrayList<TransferState> cycle : graph.findCycles(blockedMoves, this::fitsInPlaceOf)) {
+            for (TransferState cycle_transfer : cycle) {
+                blockedMoves.remove(cycle_transfer);
             }
+            releaseCycle(cycle, cycle.get(0));
         }
     }
 
+    // Transfer entering the source device of the leaving one fits into its free space together with the space freed
+    // by the leaving transfer.
+    private boolean fitsInPlaceOf(TransferState entering, TransferState leaving) {
+        return sizeOf(entering.transfer.getComponentId())
+                <= freeSlots(leaving.transfer.getSourceDeviceId()) + sizeOf(leaving.transfer.getComponentId());
+    }
+
+    // Returns the number of slots taken up by the component.
+    private int sizeOf(ComponentId component) {
+        return componentSizes.isEmpty() ? 1 : componentSizes.getOrDefault(component, 1);
+    }
+
     /*
      * Assigns a transfer type to a component transfer.
      * INPUT: ComponentTransfer object.
@@ -327,8 +1235,9 @@ public class StorageSystemImplementation implements StorageSystem {
     }
 
     // All the checks for possible exceptions regarding executed transfer.
-    private void checkIfTransferIsLegal(ComponentTransfer transfer) throws TransferException {
-        TransferType transferType = assignTransferType(transfer);
+    private void checkIfTransferIsLegal(TransferState state) throws TransferException {
+        ComponentTransfer transfer = state.transfer;
+        TransferType transferType = state.type;
         DeviceId source = transfer.getSourceDeviceId();
         DeviceId destination = transfer.getDestinationDeviceId();
 
@@ -342,6 +1251,29 @@ public class StorageSystemImplementation implements StorageSystem {
             throw new DeviceDoesNotExist(destination);
         }
 
+        ComponentId component = transfer.getComponentId();
+        checkComponentPlacement(transfer, transferType);
+
+        // Check if component is already being transferred. If not, transfer claims the component.
+        if (!componentPlacement.claim(component)) {
+            throw new ComponentIsBeingOperatedOn(component);
+        }
+
+        // Placement could have changed before the component was claimed, so it is checked once again.
+        try {
+            checkComponentPlacement(transfer, transferType);
+        } catch (TransferException e) {
+            componentPlacement.release(component);
+            throw e;
+        }
+    }
+
+    // Checks regarding placement of the component, that is executed by the transfer.
+    private void checkComponentPlacement(ComponentTransfer transfer, TransferType transferType)
+            throws TransferException {
+        DeviceId source = transfer.getSourceDeviceId();
+        DeviceId destination = transfer.getDestinationDeviceId();
+
         // Check if component exists on the destination device.
         ComponentId component = transfer.getComponentId();
         if (transferType == TransferType.ADD && destination != null && componentPlacement.get(component) != null) {
@@ -356,90 +1288,271 @@ public class StorageSystemImplementation implements StorageSystem {
         // Check if component exists on the source device for MOVE or REMOVE operations.
         if ((transferType == TransferType.MOVE || transferType == TransferType.REMOVE)
                 && source != null &&
-                (!componentPlacement.containsKey(component) || componentPlacement.get(component).compareTo(source) != 0) ) {
+                (componentPlacement.get(component) == null || componentPlacement.get(component).compareTo(source) != 0) ) {
             throw new ComponentDoesNotExist(component, source);
         }
-
-        if (!isComponentTransferred.containsKey(component))
-            isComponentTransferred.put(component, false);
-
-        // Check if component is already being transferred.
-        if (isComponentTransferred.get(component)) {
-            throw new ComponentIsBeingOperatedOn(component);
-        }
-
-        // Component transfer starts, when it is legal.
-        isComponentTransferred.put(component, true);
     }
 
     /*
-     * INPUT: ComponentTransfer object which has just called prepare() method.
+     * INPUT: State of a transfer which has just called prepare() method.
      *
      * FUNCTION: Updates the maps after the prepare() method of a ComponentTransfer is called.
      * Depending on the type of the transfer (ADD, REMOVE, or MOVE), it updates the componentPlacement and
-     * deviceTakenSlots maps.
-     * For REMOVE and MOVE transfers, it removes the component from its source device in the componentPlacement map
-     * and decrements the count of taken slots on the source device in the deviceTakenSlots map.
-     * If there is a transfer waiting for the current transfer to finish, it allows the waiting transfer to call
-     * its perform() method by counting down its PERFORM latch.
+     * deviceSlots maps.
+     * For REMOVE and MOVE transfers, it removes the component from its source device in the componentPlacement map.
+     * If there are transfers waiting for the current transfer to finish, the slots on the source device are handed
+     * over to the waiting transfers, which can now call their perform() methods (their PERFORM latches are released).
+     * Slots, which no waiting transfer has claimed, are freed in the deviceSlots map and offered to transfers
+     * waiting for the source device.
      *
-     * OUTPUT: No explicit output. Modifies the componentPlacement, deviceTakenSlots,
-     * and transferPhaseLatches maps as a side effect.
+     * OUTPUT: No explicit output. Modifies the componentPlacement, deviceSlots and startedTransfers maps
+     * and the state of the transfer as a side effect.
      */
-    private void modifyMapsAfterPrepare(ComponentTransfer transfer) {
-        acquire_semaphore(transferOperation);
-
-        ComponentId componentId = transfer.getComponentId();
-        DeviceId source = transfer.getSourceDeviceId();
+    private void modifyMapsAfterPrepare(TransferState state) {
+        DeviceId source = state.transfer.getSourceDeviceId();
 
         if (source != null) {
-            componentPlacement.remove(componentId);
-            deviceTakenSlots.get(source).decrementAndGet();
+            boolean recorded = false;
+            if (state.lockFree) {
+                if (leaveWithoutLocks(state)) {
+                    return;
+                }
+                recorded = true;
+            }
+            locks.lock(source);
+            int freedSlots = leaveSourceDevice(state, recorded);
+            if (freedSlots > 0) {
+                serveWaitingTransfers(source, state.transfer);
+            }
+            locks.unlock(source);
 
-            // Transfer waiting for us can call prepare()
-            ComponentTransfer whoWaitsForMe = waitsFor.get(transfer);
-            if (whoWaitsForMe != null) {
-                transferPhaseLatches.get(whoWaitsForMe).get(LatchPhase.PERFORM).countDown();
+            if (freedSlots > 0) {
+                retryBlockedCyclesAfterFreeing();
+            }
+            startChains();
+        } else {
+            state.setStep(TransferStep.ENDED_PREPARE);
+        }
+    }
+
+    /*
+     * INPUT: State of a transfer started without locks (see startWithoutLocks()), which has just called prepare().
+     * FUNCTION: Removes the component from its source device and frees its slot without any lock, unless a transfer
+     * waits for the device - then the slot has to be offered to it under the lock of the device. Departure is
+     * recorded before the slot is freed (see recordDeparture()), in both cases.
+     * OUTPUT: True if the transfer has left its source device, false if it has to leave it under the lock.
+     */
+    private boolean leaveWithoutLocks(TransferState state) {
+        recordDeparture(state);
+        if (!deviceSlots.get(state.transfer.getSourceDeviceId()).tryFreeUnlocked(state.unclaimed)) {
+            return false;
+        }
+
+        state.unclaimed = 0;
+        state.setStep(TransferStep.ENDED_PREPARE);
+        return true;
+    }
+
+    /*
+     * Removes the component from the placement and appends its departure to the journal. It is done before the slot
+     * of the component is freed, so that no transfer taking the slot is recorded on the device before it - neither
+     * a snapshot nor the journal can see the device overfilled.
+     */
+    private void recordDeparture(TransferState state) {
+        ComponentId componentId = state.transfer.getComponentId();
+        history.put(componentId, null);
+        if (journal != null && journal.appendDeparture(componentId, state.transfer.getDestinationDeviceId())) {
+            scheduleSnapshot();
+        }
+    }
+
+    /*
+     * INPUT: State of a transfer which has just called prepare() method. Its source device has to be locked.
+     * FUNCTION: Removes the component from its source device and releases PERFORM latches of the transfers waiting
+     * for this transfer. Slots, which no waiting transfer has claimed, are freed in the deviceSlots map, but
+     * the caller offers them to transfers waiting for the source device.
+     * Departure is recorded first, unless leaveWithoutLocks() has already recorded it (recorded is true).
+     * OUTPUT: Number of freed slots.
+     */
+    private int leaveSourceDevice(TransferState state, boolean recorded) {
+        DeviceId source = state.transfer.getSourceDeviceId();
+
+        if (!recorded) {
+            recordDeparture(state);
+        }
+        startedTransfers.get(source).remove(state); // Slot is freed, nobody can wait for us anymore.
+
+        // Transfers waiting for us can call perform()
+        TransferState whoWaitsForMe = state.whoWaitsForMe;
+        while (whoWaitsForMe != null) {
+            TransferState nextWhoWaits = whoWaitsForMe.nextWhoWaits;
+            TransferEvents.latchReleased(whoWaitsForMe.transfer, LatchPhase.PERFORM, TransferEvents.PREPARED,
+                    state.transfer);
+            whoWaitsForMe.releaseLatch(LatchPhase.PERFORM);
+            whoWaitsForMe = nextWhoWaits;
+        }
+
+        int freedSlots = state.unclaimed;
+        state.unclaimed = 0;
+        if (freedSlots > 0) {
+            deviceSlots.get(source).free(freedSlots);
+        }
+        state.setStep(TransferStep.ENDED_PREPARE);
+        return freedSlots;
+    }
+
+    /*
+     * INPUT: Device, number of slots and time, after which the lease expires.
+     * FUNCTION: Reserves free slots on the device, so that later transfers executed with the lease (see
+     * LeasedTransfer) are started without waiting. Slots, which transfers have not taken, are returned to the device
+     * and offered to transfers waiting for it, when the lease is closed or expires. Expiry is run by asyncExecutor.
+     * OUTPUT: Lease of the slots, or null if the device does not have that many free slots. Throws
+     * IllegalArgumentException, if the device does not exist, an argument is null or the number of slots
+     * is not positive.
+     */
+    public SlotLease reserve(DeviceId device, int slots, Duration timeout) {
+        if (device == null || timeout == null) {
+            throw new IllegalArgumentException("Arguments cannot be null.");
+        }
+        if (!deviceTotalSlots.containsKey(device)) {
+            throw new IllegalArgumentException("Device does not exist.");
+        }
+        if (slots <= 0) {
+            throw new IllegalArgumentException("Number of slots must be positive.");
+        }
+
+        locks.lock(device);
+        try {
+            if (!deviceSlots.get(device).tryTake(slots)) {
+                return null;
+            }
+        } finally {
+            locks.unlock(device);
+        }
+
+        SlotLease lease = new SlotLease(this, device, slots);
+        CompletableFuture.delayedExecutor(saturatedNanos(timeout), TimeUnit.NANOSECONDS, asyncExecutor)
+                .execute(lease::close);
+        return lease;
+    }
+
+    // Timeout in nanoseconds, saturated at Long.MAX_VALUE or Long.MIN_VALUE like TimeUnit.convert() does.
+    private static long saturatedNanos(Duration timeout) {
+        try {
+            return timeout.toNanos();
+        } catch (ArithmeticException e) {
+            return timeout.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    // Returns slots of the lease, which transfers have not taken, to its device. No device can be locked.
+    void returnLease(SlotLease lease) {
+        int slots = lease.expire();
+        if (slots > 0) {
+            DeviceId device = lease.getDevice();
+            locks.lock(device);
+            deviceSlots.get(device).free(slots);
+            serveWaitingTransfers(device, null);
+            locks.unlock(device);
+
+            retryBlockedCyclesAfterFreeing();
+            startChains();
+        }
+    }
+
+    /*
+     * FUNCTION: Released MOVE transfers (see releasedMoves) start leaving their source devices, unless they have
+     * already done it themselves, or they are a part of a cycle. Transfers waiting for their slots are released
+     * and they start leaving their sources as well, so the whole chain of waiting transfers is released by one
+     * thread and their prepare() methods can run at the same time. Perform phases still wait for the prepare phases
+     * of transfers, whose slots they take. No device can be locked.
+     * OUTPUT: No explicit output. Modifies the states of the transfers and startedTransfers as a side effect.
+     */
+    void startChains() {
+        TransferState state;
+        while ((state = releasedMoves.poll()) != null) {
+            DeviceId source = state.transfer.getSourceDeviceId();
+            locks.lock(source);
+            if (state.unclaimed < 0) {
+                startLeaving(state); // Released transfers are added to releasedMoves.
             }
+            locks.unlock(source);
         }
+    }
+
+    /*
+     * Makes the system a shard of a sharded system (see ShardedStorageSystem), whose MOVE transfers to devices of
+     * other shards wait in queues of this system. Called before the system is used.
+     */
+    void joinCoordinator(ShardCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    // Shard records transfers in metrics of the sharded system (null disables them). All devices have to be locked.
+    void useMetrics(StorageSystemMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Legal transfer, which will not be admitted, gives up its component.
+    void abandon(TransferState state) {
+        componentPlacement.release(state.transfer.getComponentId());
+    }
+
+    // Locks all devices of the system, so that a cycle spanning shards can be looked for (see ShardCoordinator).
+    void lockAllDevices() {
+        locks.lockAll();
+    }
 
-        transferOperation.release();
+    void unlockAllDevices() {
+        locks.unlockAll();
+    }
+
+    // Calls the action for every waiting MOVE transfer, which can be a part of a cycle. All devices have to be locked.
+    void forEachWaitingMove(Consumer<TransferState> action) {
+        graph.forEachEdge(action);
+        blockedMoves.forEach(action);
+    }
+
+    // Freed slots can make a blocked cycle fit. No device can be locked.
+    private void retryBlockedCyclesAfterFreeing() {
+        if (!blockedMoves.isEmpty()) {
+            locks.lockAll();
+            retryBlockedCycles();
+            locks.unlockAll();
+        }
     }
 
     /*
-     * INPUT: ComponentTransfer object which has just called perform() method.
+     * INPUT: State of a transfer which has just called perform() method.
      *
      * FUNCTION: Updates the maps after the perform() method of a ComponentTransfer is called.
-     * Depending on the type of the transfer (ADD, MOVE), it updates the componentPlacement and deviceTakenSlots maps.
-     * For ADD and MOVE transfers, it adds the component to its destination device in the componentPlacement map and
-     * increments the count of taken slots on the destination device in the deviceTakenSlots map.
-     * If the transfer type is MOVE, it also removes the edge representing the transfer from the graph of transfers.
+     * For ADD and MOVE transfers, it adds the component to its destination device in the componentPlacement map
+     * (its slot on the destination device was already taken, when the transfer started).
+     * At the end, the component is released, so other transfers can operate on it.
+     *
+     * Only the placement of its component is modified, so no device has to be locked. State of the transfer is
+     * not referenced by the system anymore, so it does not have to be removed from anywhere.
      *
-     * OUTPUT: No explicit output. Modifies the componentPlacement, deviceTakenSlots,
-     * isComponentTransferred, waitsFor, and transferPhaseLatches maps as a side effect.
+     * OUTPUT: No explicit output. Modifies the componentPlacement map as a side effect.
      */
-    private void modifyMapsAfterPerform(ComponentTransfer transfer) {
-        acquire_semaphore(transferOperation);
-
-        TransferType transferType = assignTransferType(transfer);
-        ComponentId componentId = transfer.getComponentId();
-        DeviceId destination = transfer.getDestinationDeviceId();
-
-        if (transferType == TransferType.MOVE) graph.removeEdge(transfer);
+    private void modifyMapsAfterPerform(TransferState state) {
+        ComponentId componentId = state.transfer.getComponentId();
+        DeviceId destination = state.transfer.getDestinationDeviceId();
 
         if (destination != null) {
-            componentPlacement.put(componentId, destination);
+            history.put(componentId, destination);
+        }
+        // Completion is journaled before the component is released, so its next transfer is journaled after it.
+        if (journal != null && journal.appendCompletion(state.type, componentId, destination)) {
+            scheduleSnapshot();
         }
 
-        isComponentTransferred.put(componentId, false);
-        waitsFor.remove(transfer);
-        transferPhaseLatches.remove(transfer);
-        transferStep.remove(transfer);
-
-        if (transferType == TransferType.REMOVE)
-            isComponentTransferred.remove(componentId);
+        componentPlacement.release(componentId);
+    }
 
-        transferOperation.release();
+    // Takes a snapshot of the placement in the background, so that the journal does not grow indefinitely.
+    private void scheduleSnapshot() {
+        asyncExecutor.execute(() -> journal.snapshot(deviceTotalSlots, componentPlacement));
     }
 
 }
\ No newline at end of file
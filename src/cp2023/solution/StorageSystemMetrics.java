@@ -0,0 +1,325 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import cp2023.base.DeviceId;
+import cp2023.solution.StorageSystemImplementation.LatchPhase;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Instrumentation of StorageSystemImplementation, enabled with StorageSystemImplementation.enableMetrics().
+ * While metrics are disabled, the system does not call any of these methods.
+ *
+ * Counters are LongAdders and latencies are LatencyHistograms, so that recording does not allocate and threads
+ * do not contend on one memory location. Queue depths are not counted on the hot path at all - they are read from
+ * the queues, when a snapshot is taken.
+ *
+ * Metrics can be read with snapshot(), exported over JMX with registerMBean() and to JFR (as periodic
+ * cp2023.StorageMetrics events) with enableJfrExport().
+ */
+public class StorageSystemMetrics implements StorageSystemMetricsMXBean {
+
+    // Counters of transfers, whose destination is a device.
+    private static final class DeviceCounters {
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder queued = new LongAdder();
+    }
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder cycles = new LongAdder();
+    private final LatencyHistogram cycleLengths = new LatencyHistogram();
+    private final LatencyHistogram prepareWaits = new LatencyHistogram(); // Nanoseconds.
+    private final LatencyHistogram performWaits = new LatencyHistogram(); // Nanoseconds.
+    private final HashMap<DeviceId, DeviceCounters> devices; // Not modified after construction.
+    private final ToIntFunction<DeviceId> queueDepth;
+    private final Runnable jfrHook = this::emitJfrEvent;
+
+    public StorageSystemMetrics(Collection<DeviceId> devices, ToIntFunction<DeviceId> queueDepth) {
+        this.devices = new HashMap<>();
+        for (DeviceId device : devices) {
+            this.devices.put(device, new DeviceCounters());
+        }
+        this.queueDepth = queueDepth;
+    }
+
+    // Transfer to the destination device (null for REMOVE) was admitted. If it was not started, it was queued.
+    void recordAdmission(DeviceId destination, boolean started) {
+        admitted.increment();
+        if (!started) {
+            queued.increment();
+        }
+        if (destination != null) {
+            DeviceCounters counters = devices.get(destination);
+            counters.admitted.increment();
+            if (!started) {
+                counters.queued.increment();
+            }
+        }
+    }
+
+    // Transfer waited for the latch of the phase for the given time.
+    void recordWait(LatchPhase phase, long nanos) {
+        (phase == LatchPhase.PREPARE ? prepareWaits : performWaits).record(nanos);
+    }
+
+    // Cycle of MOVE transfers was found and released.
+    void recordCycle(int length) {
+        cycles.increment();
+        cycleLengths.record(length);
+    }
+
+    // Returns current values of all metrics. Values recorded concurrently may or may not be included.
+    public Snapshot snapshot() {
+        TreeMap<DeviceId, DeviceSnapshot> deviceSnapshots = new TreeMap<>();
+        for (Map.Entry<DeviceId, DeviceCounters> entry : devices.entrySet()) {
+            deviceSnapshots.put(entry.getKey(), new DeviceSnapshot(
+                    entry.getValue().admitted.sum(),
+                    entry.getValue().queued.sum(),
+                    queueDepth.applyAsInt(entry.getKey())));
+        }
+        return new Snapshot(admitted.sum(), queued.sum(), cycles.sum(), cycleLengths.snapshot(),
+                prepareWaits.snapshot(), performWaits.snapshot(), deviceSnapshots);
+    }
+
+    // Registers metrics in the platform MBean server under the given name, e.g. "cp2023:type=StorageSystem".
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    public void unregisterMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+    }
+
+    // Emits a cp2023.StorageMetrics JFR event in every chunk of a recording and every second, if it is enabled.
+    public void enableJfrExport() {
+        FlightRecorder.addPeriodicEvent(MetricsEvent.class, jfrHook);
+    }
+
+    public void disableJfrExport() {
+        FlightRecorder.removePeriodicEvent(jfrHook);
+    }
+
+    private void emitJfrEvent() {
+        MetricsEvent event = new MetricsEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        LatencyHistogram.Snapshot prepare = prepareWaits.snapshot();
+        LatencyHistogram.Snapshot perform = performWaits.snapshot();
+        event.transfersAdmitted = admitted.sum();
+        event.transfersQueued = queued.sum();
+        event.cyclesResolved = cycles.sum();
+        event.prepareWaitP99 = prepare.getValueAtPercentile(99);
+        event.performWaitP99 = perform.getValueAtPercentile(99);
+        int waiting = 0;
+        for (DeviceId device : devices.keySet()) {
+            waiting += queueDepth.applyAsInt(device);
+        }
+        event.transfersWaiting = waiting;
+        event.commit();
+    }
+
+    @Name("cp2023.StorageMetrics")
+    @Label("Storage System Metrics")
+    @Category("Storage System")
+    @Description("Counters and wait times of the storage system")
+    @Period("1 s")
+    @StackTrace(false)
+    public static final class MetricsEvent extends Event {
+        @Label("Transfers Admitted")
+        long transfersAdmitted;
+
+        @Label("Transfers Queued")
+        long transfersQueued;
+
+        @Label("Transfers Waiting")
+        int transfersWaiting;
+
+        @Label("Cycles Resolved")
+        long cyclesResolved;
+
+        @Label("Prepare Wait p99")
+        @Timespan(Timespan.NANOSECONDS)
+        long prepareWaitP99;
+
+        @Label("Perform Wait p99")
+        @Timespan(Timespan.NANOSECONDS)
+        long performWaitP99;
+    }
+
+    @Override
+    public long getTransfersAdmitted() {
+        return admitted.sum();
+    }
+
+    @Override
+    public long getTransfersQueued() {
+        return queued.sum();
+    }
+
+    @Override
+    public long getCyclesResolved() {
+        return cycles.sum();
+    }
+
+    @Override
+    public double getMeanCycleLength() {
+        return cycleLengths.snapshot().getMean();
+    }
+
+    @Override
+    public long getMaxCycleLength() {
+        return cycleLengths.snapshot().getMax();
+    }
+
+    @Override
+    public double getPrepareWaitP50Micros() {
+        return prepareWaits.snapshot().getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getPrepareWaitP99Micros() {
+        return prepareWaits.snapshot().getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getPerformWaitP50Micros() {
+        return performWaits.snapshot().getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getPerformWaitP99Micros() {
+        return performWaits.snapshot().getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        TreeMap<String, Integer> depths = new TreeMap<>();
+        for (DeviceId device : devices.keySet()) {
+            depths.put(device.toString(), queueDepth.applyAsInt(device));
+        }
+        return depths;
+    }
+
+    // Metrics of transfers, whose destination is a device.
+    public static final class DeviceSnapshot {
+        private final long transfersAdmitted;
+        private final long transfersQueued;
+        private final int queueDepth;
+
+        private DeviceSnapshot(long transfersAdmitted, long transfersQueued, int queueDepth) {
+            this.transfersAdmitted = transfersAdmitted;
+            this.transfersQueued = transfersQueued;
+            this.queueDepth = queueDepth;
+        }
+
+        public long getTransfersAdmitted() {
+            return transfersAdmitted;
+        }
+
+        // Number of transfers, which had to wait for a slot on the device.
+        public long getTransfersQueued() {
+            return transfersQueued;
+        }
+
+        // Number of transfers waiting for a slot on the device right now.
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        @Override
+        public String toString() {
+            return "admitted=" + transfersAdmitted + " queued=" + transfersQueued + " depth=" + queueDepth;
+        }
+    }
+
+    // Immutable state of all metrics.
+    public static final class Snapshot {
+        private final long transfersAdmitted;
+        private final long transfersQueued;
+        private final long cyclesResolved;
+        private final LatencyHistogram.Snapshot cycleLengths;
+        private final LatencyHistogram.Snapshot prepareWaits;
+        private final LatencyHistogram.Snapshot performWaits;
+        private final Map<DeviceId, DeviceSnapshot> devices;
+
+        private Snapshot(long transfersAdmitted, long transfersQueued, long cyclesResolved,
+                         LatencyHistogram.Snapshot cycleLengths, LatencyHistogram.Snapshot prepareWaits,
+                         LatencyHistogram.Snapshot performWaits, Map<DeviceId, DeviceSnapshot> devices) {
+            this.transfersAdmitted = transfersAdmitted;
+            this.transfersQueued = transfersQueued;
+            this.cyclesResolved = cyclesResolved;
+            this.cycleLengths = cycleLengths;
+            this.prepareWaits = prepareWaits;
+            this.performWaits = performWaits;
+            this.devices = Collections.unmodifiableMap(devices);
+        }
+
+        public long getTransfersAdmitted() {
+            return transfersAdmitted;
+        }
+
+        // Number of transfers, which had to wait for a slot on their destination device.
+        public long getTransfersQueued() {
+            return transfersQueued;
+        }
+
+        public long getCyclesResolved() {
+            return cyclesResolved;
+        }
+
+        // Number of transfers in each resolved cycle.
+        public LatencyHistogram.Snapshot getCycleLengths() {
+            return cycleLengths;
+        }
+
+        // Time in nanoseconds waiting transfers spent before they could call prepare().
+        public LatencyHistogram.Snapshot getPrepareWaits() {
+            return prepareWaits;
+        }
+
+        // Time in nanoseconds waiting transfers spent between the end of prepare() and perform().
+        public LatencyHistogram.Snapshot getPerformWaits() {
+            return performWaits;
+        }
+
+        public Map<DeviceId, DeviceSnapshot> getDevices() {
+            return devices;
+        }
+
+        @Override
+        public String toString() {
+            return "admitted=" + transfersAdmitted + " queued=" + transfersQueued + " cycles=" + cyclesResolved +
+                    "\ncycle lengths: " + cycleLengths +
+                    "\nprepare waits [ns]: " + prepareWaits +
+                    "\nperform waits [ns]: " + performWaits;
+        }
+    }
+
+}
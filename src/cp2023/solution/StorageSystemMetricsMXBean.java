@@ -0,0 +1,36 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.util.Map;
+
+// JMX view of StorageSystemMetrics - see StorageSystemMetrics.registerMBean(). Times are in microseconds.
+public interface StorageSystemMetricsMXBean {
+
+    long getTransfersAdmitted();
+
+    long getTransfersQueued();
+
+    long getCyclesResolved();
+
+    double getMeanCycleLength();
+
+    long getMaxCycleLength();
+
+    double getPrepareWaitP50Micros();
+
+    double getPrepareWaitP99Micros();
+
+    double getPerformWaitP50Micros();
+
+    double getPerformWaitP99Micros();
+
+    // Current number of transfers waiting in the queue of each device, by DeviceId.toString().
+    Map<String, Integer> getQueueDepths();
+
+}
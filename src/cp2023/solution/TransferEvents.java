@@ -0,0 +1,135 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * JFR events tracing the lifecycle of transfers in StorageSystemImplementation, see cp2023.demo.TransferTraceAnalyzer.
+ *
+ * Every event carries the id of the component and the source and destination devices of the transfer ("DEV-n",
+ * or null if there is none). A component is operated on by at most one transfer at a time, so events of a transfer
+ * are the events of its component from its TransferAdmitted event until the next one.
+ *
+ * Events are created and committed in the standard JFR way (new, begin(), commit()). While no recording is
+ * running, JIT compiles them away, so they cost nothing.
+ */
+public final class TransferEvents {
+
+    // Causes of releasing a latch.
+    static final String FREED_SLOT = "FREED_SLOT"; // Transfer leaving the destination device gave its slot.
+    static final String CYCLE = "CYCLE"; // Transfer closed a cycle of waiting MOVE transfers.
+    static final String PREPARED = "PREPARED"; // Transfer, whose slot was taken over, ended its prepare phase.
+
+    private TransferEvents() {
+    }
+
+    // Common fields of all events.
+    @Category({"Storage System", "Transfers"})
+    @StackTrace(false)
+    abstract static class TransferEvent extends Event {
+        @Label("Component")
+        int component;
+
+        @Label("Source Device")
+        String source;
+
+        @Label("Destination Device")
+        String destination;
+
+        void setTransfer(ComponentTransfer transfer) {
+            // ComponentId.hashCode() is its id.
+            component = transfer.getComponentId().hashCode();
+            source = device(transfer.getSourceDeviceId());
+            destination = device(transfer.getDestinationDeviceId());
+        }
+    }
+
+    private static String device(DeviceId device) {
+        return device == null ? null : device.toString();
+    }
+
+    @Name("cp2023.TransferAdmitted")
+    @Label("Transfer Admitted")
+    @Description("Legal transfer was started or put into the queue of its destination device")
+    public static final class Admitted extends TransferEvent {
+        @Label("Started")
+        @Description("Transfer was started right away, without waiting")
+        boolean started;
+    }
+
+    @Name("cp2023.TransferQueued")
+    @Label("Transfer Queued")
+    @Description("Transfer was put into the queue of its destination device")
+    public static final class Queued extends TransferEvent {
+        @Label("Priority")
+        String priority;
+    }
+
+    @Name("cp2023.LatchReleased")
+    @Label("Latch Released")
+    @Description("Transfer was allowed to call prepare() or perform()")
+    public static final class LatchReleased extends TransferEvent {
+        @Label("Phase")
+        String phase;
+
+        @Label("Cause")
+        String cause;
+
+        @Label("Released By")
+        @Description("Component of the transfer, which released the latch, or -1 if slots were returned by a lease")
+        int releasedBy;
+    }
+
+    @Name("cp2023.TransferWait")
+    @Label("Transfer Wait")
+    @Description("Transfer waited for its latch to be released")
+    public static final class Wait extends TransferEvent {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("cp2023.TransferPhase")
+    @Label("Transfer Phase")
+    @Description("Transfer called prepare() or perform()")
+    public static final class Phase extends TransferEvent {
+        @Label("Phase")
+        String phase;
+    }
+
+    // Emits a LatchReleased event, if it is enabled.
+    static void latchReleased(ComponentTransfer released, StorageSystemImplementation.LatchPhase phase,
+                              String cause, ComponentTransfer releasedBy) {
+        LatchReleased event = new LatchReleased();
+        if (event.isEnabled()) {
+            event.setTransfer(released);
+            event.phase = phase.name();
+            event.cause = cause;
+            event.releasedBy = releasedBy == null ? -1 : releasedBy.getComponentId().hashCode();
+            event.commit();
+        }
+    }
+
+    // Emits a Queued event, if it is enabled.
+    static void queued(ComponentTransfer transfer) {
+        Queued event = new Queued();
+        if (event.isEnabled()) {
+            event.setTransfer(transfer);
+            event.priority = TransferPriority.of(transfer).name();
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import cp2023.base.ComponentTransfer;
+
+/*
+ * Priority class of a transfer waiting for a slot on its destination device, from the most urgent one.
+ * URGENT: e.g. evacuation of components off a failing device.
+ * NORMAL: every transfer, which is not a PrioritizedTransfer.
+ * BACKGROUND: e.g. rebalancing of components between devices.
+ *
+ * Waiting transfers are served by priority, but a transfer of a lower class is overtaken only a bounded number
+ * of times - see DeviceQueue.
+ */
+public enum TransferPriority {
+    URGENT, NORMAL, BACKGROUND;
+
+    // Returns the priority class of the transfer.
+    static TransferPriority of(ComponentTransfer transfer) {
+        return transfer instanceof PrioritizedTransfer prioritized ? prioritized.getPriority() : NORMAL;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+import cp2023.base.ComponentTransfer;
+import cp2023.solution.StorageSystemImplementation.LatchPhase;
+import cp2023.solution.StorageSystemImplementation.TransferStep;
+import cp2023.solution.StorageSystemImplementation.TransferType;
+
+/*
+ * State of a transfer inside StorageSystemImplementation, from the moment it is found legal until it ends its
+ * perform phase. It is the only object allocated for a transfer, which does not have to wait, so that transfers
+ * are not looked up in any map on the fast path of execute().
+ *
+ * Step of the transfer and both of its latches are kept in one atomic phase word. A released latch stays released.
+ * Transfer waits for one latch at a time: a thread blocked in execute() parks until the latch is released,
+ * executeAsync() registers a continuation instead. Latches of a transfer, which does not have to wait, are never
+ * used, so they cost nothing.
+ *
+ * Fields, which are not final, are guarded by the lock of the source device of the transfer, except for the phase
+ * word and the waiter.
+ */
+public class TransferState {
+
+    // Bits of the phase word: released latches in the lowest bits, ordinal of the step above them.
+    private static final int PREPARE_RELEASED = 1;
+    private static final int PERFORM_RELEASED = 1 << 1;
+    private static final int LATCHES = PREPARE_RELEASED | PERFORM_RELEASED;
+    private static final int STEP_SHIFT = 2;
+    private static final TransferStep[] STEPS = TransferStep.values();
+
+    private static final VarHandle PHASE;
+
+    static {
+        try {
+            PHASE = MethodHandles.lookup().findVarHandle(TransferState.class, "phase", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Continuation of executeAsync() waiting for the latch.
+    private static final class Continuation extends CompletableFuture<Void> {
+        private final int latch;
+
+        private Continuation(int latch) {
+            this.latch = latch;
+        }
+    }
+
+    final ComponentTransfer transfer;
+    final TransferType type;
+
+    private volatile int phase; // Step is LEGAL and no latch is released, when the transfer is found legal.
+    private volatile Object waiter; // Thread parked in awaitLatch(), Continuation of latchStage(), or null.
+
+    /*
+     * "You cannot call prepare() on the place being freed by transfer X and then call perform() on the place of transfer Y."
+     * Transfers, which take capacity freed on the source device by this transfer, so they have to wait for this
+     * transfer to finish its prepare phase. It is the first of them, the next ones are linked by nextWhoWaits.
+     * Null if there is no such transfer yet.
+     */
+    TransferState whoWaitsForMe;
+    // Next transfer waiting for the same transfer as this one. Guarded by the lock of the destination device.
+    TransferState nextWhoWaits;
+
+    /*
+     * Capacity of the source device, which this transfer is freeing and no waiting transfer has taken yet.
+     * It is -1 until the transfer starts leaving its source device.
+     */
+    int unclaimed;
+
+    // Transfer has started leaving its source device without any lock, so no transfer can wait for it.
+    boolean lockFree;
+
+    // Neighbours in the TransferList, which the transfer is on.
+    private TransferState previous;
+    private TransferState next;
+
+    TransferState(ComponentTransfer transfer, TransferType type) {
+        this.transfer = transfer;
+        this.type = type;
+        this.unclaimed = -1;
+    }
+
+    private static int bit(LatchPhase latch) {
+        return latch == LatchPhase.PREPARE ? PREPARE_RELEASED : PERFORM_RELEASED;
+    }
+
+    TransferStep step() {
+        return STEPS[phase >>> STEP_SHIFT];
+    }
+
+    // Sets the step of the transfer, keeping its latches. Step is set only by the transfer itself.
+    void setStep(TransferStep step) {
+        int word;
+        do {
+            word = phase;
+        } while (!PHASE.compareAndSet(this, word, (word & LATCHES) | (step.ordinal() << STEP_SHIFT)));
+    }
+
+    boolean isLatchReleased(LatchPhase latch) {
+        return (phase & bit(latch)) != 0;
+    }
+
+    // Releases the latch and wakes up the transfer, if it waits for it.
+    void releaseLatch(LatchPhase latch) {
+        int bit = bit(latch);
+        PHASE.getAndBitwiseOr(this, bit);
+
+        // Waiter is read after the latch is released and it checks the latch after it is set, so it cannot miss it.
+        Object waiter = this.waiter;
+        if (waiter instanceof Thread thread) {
+            LockSupport.unpark(thread);
+        } else if (waiter instanceof Continuation continuation && continuation.latch == bit) {
+            continuation.complete(null);
+        }
+    }
+
+    // Blocks the calling thread until the latch is released.
+    void awaitLatch(LatchPhase latch) throws InterruptedException {
+        int bit = bit(latch);
+        if ((phase & bit) != 0) {
+            return;
+        }
+
+        waiter = Thread.currentThread();
+        try {
+            while ((phase & bit) == 0) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    // Blocks the calling thread until the latch is released or the deadline (of System.nanoTime()) passes.
+    // Returns true if the latch is released.
+    boolean awaitLatch(LatchPhase latch, long deadline) throws InterruptedException {
+        int bit = bit(latch);
+        if ((phase & bit) != 0) {
+            return true;
+        }
+
+        waiter = Thread.currentThread();
+        try {
+            while ((phase & bit) == 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    // Returns a stage completed when the latch is released.
+    CompletableFuture<Void> latchStage(LatchPhase latch) {
+        int bit = bit(latch);
+        if ((phase & bit) != 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Continuation continuation = new Continuation(bit);
+        waiter = continuation;
+        if ((phase & bit) != 0) {
+            continuation.complete(null);
+        }
+        return continuation;
+    }
+
+    /*
+     * FIFO list of transfers, linked through the transfers themselves, so adding and removing a transfer allocates
+     * nothing and removing any transfer takes constant time. A transfer is on at most one list at a time: first
+     * it may wait in the DeviceQueue of its destination device, then it may be on the list of started transfers
+     * of its source device.
+     */
+    static final class TransferList {
+        private TransferState first;
+        private TransferState last;
+
+        boolean isEmpty() {
+            return first == null;
+        }
+
+        TransferState first() {
+            return first;
+        }
+
+        void add(TransferState state) {
+            state.previous = last;
+            state.next = null;
+            if (last == null) {
+                first = state;
+            } else {
+                last.next = state;
+            }
+            last = state;
+        }
+
+        // Removes the transfer, if it is on the list. Returns true if it was.
+        boolean remove(TransferState state) {
+            if (state.previous == null && first != state) {
+                return false;
+            }
+            if (state.previous == null) {
+                first = state.next;
+            } else {
+                state.previous.next = state.next;
+            }
+            if (state.next == null) {
+                last = state.previous;
+            } else {
+                state.next.previous = state.previous;
+            }
+            state.previous = null;
+            state.next = null;
+            return true;
+        }
+
+        // Returns the transfer after the given one on the list, or null if it is the last one.
+        TransferState after(TransferState state) {
+            return state.next;
+        }
+    }
+
+    /*
+     * Transfers leaving a device, which have unclaimed capacity, kept in TransferLists by their unclaimed capacity
+     * (from 1 to the size of the largest component), together with the largest unclaimed capacity. Claiming capacity
+     * takes time proportional to the size of the largest component, not to the number of leaving transfers.
+     */
+    static final class UnclaimedIndex {
+        private final TransferList[] byUnclaimed;
+        private int largest; // Largest unclaimed capacity of a transfer in the index, 0 if it is empty.
+
+        UnclaimedIndex(int largestSize) {
+            this.byUnclaimed = new TransferList[largestSize + 1];
+            for (int i = 1; i <= largestSize; i++) {
+                byUnclaimed[i] = new TransferList();
+            }
+        }
+
+        // Returns the largest unclaimed capacity of transfers in the index, or 0 if it is empty.
+        int largestUnclaimed() {
+            return largest;
+        }
+
+        // Adds a transfer with positive unclaimed capacity.
+        void add(TransferState state) {
+            byUnclaimed[state.unclaimed].add(state);
+            largest = Math.max(largest, state.unclaimed);
+        }
+
+        // Removes the transfer, if it is in the index. Its unclaimed capacity cannot change while it is in the index.
+        void remove(TransferState state) {
+            if (state.unclaimed > 0 && byUnclaimed[state.unclaimed].remove(state)) {
+                shrinkLargest();
+            }
+        }
+
+        /*
+         * INPUT: Capacity, which is at most the largest unclaimed capacity.
+         * FUNCTION: Takes the capacity from the first transfer with the smallest unclaimed capacity, which is enough.
+         * Transfer, whose whole capacity is claimed, leaves the index.
+         * OUTPUT: Transfer, from which the capacity was taken.
+         */
+        TransferState claim(int capacity) {
+            int unclaimed = capacity;
+            while (byUnclaimed[unclaimed].isEmpty()) {
+                unclaimed++;
+            }
+            TransferState state = byUnclaimed[unclaimed].first();
+            byUnclaimed[unclaimed].remove(state);
+            state.unclaimed -= capacity;
+            if (state.unclaimed > 0) {
+                byUnclaimed[state.unclaimed].add(state);
+            }
+            shrinkLargest();
+            return state;
+        }
+
+        private void shrinkLargest() {
+            while (largest > 0 && byUnclaimed[largest].isEmpty()) {
+                largest--;
+            }
+        }
+    }
+
+}
@@ -7,145 +7,482 @@
  */
 package cp2023.solution;
 
-import cp2023.base.*;
+import cp2023.base.DeviceId;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
+/*
+ * Directed graph of waiting MOVE transfers with incremental cycle detection.
+ *
+ * Every cycle is resolved (its edges are removed) as soon as it appears, so between calls to addEdge() the graph
+ * is acyclic. Graph keeps a topological order of devices (Pearce-Kelly algorithm): a new edge u -> v with
+ * ord(u) < ord(v) cannot close a cycle. Otherwise, only devices with order between ord(v) and ord(u) are searched,
+ * and if there is no cycle, only these devices are reordered.
+ */
 public class TransfersGraph {
 
     /*
      * Node in a directed graph of transfers (TransferType.MOVE).
      * Nodes are devices and edges are transfers.
      *
-     * Each node (device) contains a list of outgoing edges (transfers) that is transfers from this device to some other
-     * device inside a graph.
+     * Each node (device) contains a set of outgoing edges (transfers from this device to some other device inside
+     * a graph) and a set of incoming edges (transfers from some other device to this device).
      */
     private class DeviceNode {
         private final DeviceId device;
-        private final ConcurrentLinkedQueue<ComponentTransfer> outgoingEdges;
+        private final int index;
+        private final Set<TransferState> outgoingEdges;
+        private final Set<TransferState> incomingEdges;
 
-        public DeviceNode(DeviceId device) {
+        public DeviceNode(DeviceId device, int index) {
             this.device = device;
-            this.outgoingEdges = new ConcurrentLinkedQueue<>();
+            this.index = index;
+            this.outgoingEdges = ConcurrentHashMap.newKeySet();
+            this.incomingEdges = ConcurrentHashMap.newKeySet();
         }
 
-        public void addEdge(ComponentTransfer transfer) {
-            outgoingEdges.add(transfer);
+        public DeviceNode getEdgeDestination(TransferState transfer) {
+            return graph.get(transfer.transfer.getDestinationDeviceId());
         }
 
-        public DeviceNode getEdgeDestination(ComponentTransfer transfer) {
-            return graph.get(transfer.getDestinationDeviceId());
+        public DeviceNode getEdgeSource(TransferState transfer) {
+            return graph.get(transfer.transfer.getSourceDeviceId());
         }
 
-        public ConcurrentLinkedQueue<ComponentTransfer> getOutgoingEdges() {
+        public Set<TransferState> getOutgoingEdges() {
             return outgoingEdges;
         }
 
+        public Set<TransferState> getIncomingEdges() {
+            return incomingEdges;
+        }
+
     }
 
     private final HashMap<DeviceId, DeviceNode> graph; // Graph of transfers.
+    private final DeviceNode[] nodes; // Nodes by their index.
+
+    // Topological order of nodes: order[index] is a position of node, orderedNodes[position] is an index of node.
+    private final int[] order;
+    private final int[] orderedNodes;
 
-    public TransfersGraph(LinkedList<DeviceId> devices) {
+    // Buffers reused by searches, so that adding an edge does not allocate them every time.
+    private final int[] visited; // Node is visited in the current search, if visited[index] == searchId.
+    private int searchId;
+    private final TransferState[] parentEdge; // Edge used by forward search to reach each node.
+    private final int[] stack;
+    private final int[] forward; // Nodes reachable from the destination of a new edge.
+    private final int[] backward; // Nodes reaching the source of a new edge.
+    private final int[] positions; // Positions of forward and backward nodes to be reassigned.
+
+    public TransfersGraph(Collection<DeviceId> devices) {
+        int size = devices.size();
         this.graph = new HashMap<>();
+        this.nodes = new DeviceNode[size];
+        this.order = new int[size];
+        this.orderedNodes = new int[size];
+        this.visited = new int[size];
+        this.searchId = 0;
+        this.parentEdge = new TransferState[size];
+        this.stack = new int[size];
+        this.forward = new int[size];
+        this.backward = new int[size];
+        this.positions = new int[size];
 
-        // Initialize graph with all devices.
+        // Initialize graph with all devices. With no edges, any order is topological.
+        int index = 0;
         for (DeviceId device : devices) {
-            graph.put(device, new DeviceNode(device));
+            DeviceNode node = new DeviceNode(device, index);
+            graph.put(device, node);
+            nodes[index] = node;
+            order[index] = index;
+            orderedNodes[index] = index;
+            index++;
+        }
+    }
+
+    /*
+     * Returns a list of transfers that form a cycle.
+     *
+     * INPUT: Transfer (MOVE) that starts waiting.
+     * FUNCTION: Adds an edge of the transfer to the graph and checks if it closes a cycle, that is, if there is a path
+     * from its destination device back to its source device. Every other cycle has already been resolved, so only
+     * cycles containing the new edge can exist. If there is no cycle, topological order of nodes is updated.
+     * If there is a cycle, caller has to remove all of its edges before the next call to addEdge().
+     * OUTPUT: List of transfers that form a cycle, starting with the given transfer, where each transfer's
+     * destination is the source of the next one. If there is no cycle, returns empty list.
+     */
+    public ArrayList<TransferState> addEdge(TransferState transfer) {
+        DeviceNode source = graph.get(transfer.transfer.getSourceDeviceId());
+        DeviceNode destination = graph.get(transfer.transfer.getDestinationDeviceId());
+        source.getOutgoingEdges().add(transfer);
+        destination.getIncomingEdges().add(transfer);
+
+        ArrayList<TransferState> cycleOfTransfers = new ArrayList<>();
+        int lowerBound = order[destination.index];
+        int upperBound = order[source.index];
+        if (upperBound < lowerBound) {
+            return cycleOfTransfers; // Order is still topological.
+        }
+
+        int forwardSize = searchForward(destination, source, upperBound);
+        if (forwardSize < 0) {
+            // Walk the path back from the source node, following the edges used by the search.
+            cycleOfTransfers.add(transfer);
+            DeviceNode current = source;
+            while (current != destination) {
+                TransferState edge = parentEdge[current.index];
+                cycleOfTransfers.add(edge);
+                current = current.getEdgeSource(edge);
+            }
+            // Path was collected backwards - from the source to the destination of the transfer.
+            for (int i = 1, j = cycleOfTransfers.size() - 1; i < j; i++, j--) {
+                cycleOfTransfers.set(i, cycleOfTransfers.set(j, cycleOfTransfers.get(i)));
+            }
+            return cycleOfTransfers;
         }
+
+        int backwardSize = searchBackward(source, lowerBound);
+        reorder(forwardSize, backwardSize);
+        return cycleOfTransfers;
     }
 
-    public void addEdge(ComponentTransfer transfer) {
-        DeviceNode source = graph.get(transfer.getSourceDeviceId());
-        source.addEdge(transfer);
+    // Returns transfers waiting to move from the source device of the transfer to its destination device.
+    public ArrayList<TransferState> parallelEdges(TransferState transfer) {
+        ArrayList<TransferState> parallel = new ArrayList<>();
+        DeviceId destination = transfer.transfer.getDestinationDeviceId();
+        for (TransferState edge : graph.get(transfer.transfer.getSourceDeviceId()).getOutgoingEdges()) {
+            if (edge.transfer.getDestinationDeviceId().equals(destination)) {
+                parallel.add(edge);
+            }
+        }
+        return parallel;
     }
 
-    public void removeEdge(ComponentTransfer transfer) {
-        DeviceNode source = graph.get(transfer.getSourceDeviceId());
+    // Calls the action for every edge of the graph. All devices have to be locked.
+    public void forEachEdge(Consumer<TransferState> action) {
+        for (DeviceNode node : nodes) {
+            node.getOutgoingEdges().forEach(action);
+        }
+    }
+
+    public void removeEdge(TransferState transfer) {
+        DeviceNode source = graph.get(transfer.transfer.getSourceDeviceId());
+        DeviceNode destination = graph.get(transfer.transfer.getDestinationDeviceId());
         if (source != null) source.getOutgoingEdges().remove(transfer);
+        if (destination != null) destination.getIncomingEdges().remove(transfer);
+    }
+
+    // Condition of consecutive transfers of a cycle: the entering transfer fits into free space on the device together
+    // with the space freed by the leaving transfer.
+    @FunctionalInterface
+    public interface Link {
+        boolean fits(TransferState entering, TransferState leaving);
+    }
+
+    // Looks for cycles closed by the given edges, which are not in the graph - see findCycles() below.
+    public ArrayList<ArrayList<TransferState>> findCycles(Collection<TransferState> extraEdges, Link link) {
+        return findCycles(extraEdges, extraEdges, link);
     }
 
     /*
-     * Returns a list of transfers that form a cycle.
-     *
-     * INPUT: Transfer (MOVE) that is being executed.
-     * FUNCTION: Checks if there is a cycle in the graph of transfers. Uses DFS algorithm.
-     * OUTPUT: List of transfers that form a cycle. If there is no cycle, returns empty list.
+     * INPUT: Waiting MOVE transfers, whose edges are not in the graph (e.g. their cycles did not fit), edges among
+     * them, which may close a cycle, and the condition of consecutive transfers of a cycle.
+     * All devices have to be locked, so that edges of the graph do not change.
+     * FUNCTION: Edges of the graph together with the given ones are copied into a primitive adjacency (CSR arrays
+     * of node indices) and split into strongly connected components by Tarjan's algorithm. Every cycle has to contain
+     * one of the closing edges (e.g. because the graph itself is acyclic) and lies within one component. For each
+     * closing edge in a nontrivial component, a depth-first search looks for a path from its destination back to its
+     * source within the component, whose consecutive transfers fit, which visits each device at most once and does
+     * not visit devices of the cycles found before. Search of one edge goes along each edge at most once, so a pass
+     * is linear in the number of edges for each closing one. If all consecutive transfers fit, a cycle is found
+     * whenever there is one.
+     * OUTPUT: Cycles with disjoint devices, each starting with one of the closing transfers, where each transfer's
+     * destination is the source of the next one. The graph is not modified.
      */
-    public LinkedList<ComponentTransfer> cycleOfTransfers(ComponentTransfer transfer) {
-        LinkedList<ComponentTransfer> cycleOfTransfers = new LinkedList<>();
-        LinkedList<DeviceNode> cycleOfNodes = new LinkedList<>();
-        DeviceNode startingNode = graph.get(transfer.getSourceDeviceId());
-
-        if (dfs(startingNode, cycleOfNodes)) {
-            // Iterate over the cycleOfNodes list
-            for (int i = 0; i < cycleOfNodes.size(); i++) {
-                // Get the current node and the next node (wrapping around to the first node if at the end)
-                DeviceNode currentNode = cycleOfNodes.get(i);
-                DeviceNode nextNode = cycleOfNodes.get((i + 1) % cycleOfNodes.size());
-
-                // Find the transfer from currentNode to nextNode
-                for (ComponentTransfer edge : currentNode.getOutgoingEdges()) {
-                    if (currentNode.getEdgeDestination(edge).equals(nextNode)) {
-                        // Add the transfer to the cycleOfTransfers list
-                        cycleOfTransfers.add(edge);
-                        break;
+    public ArrayList<ArrayList<TransferState>> findCycles(Collection<TransferState> extraEdges,
+                                                          Collection<TransferState> closingEdges, Link link) {
+        ArrayList<ArrayList<TransferState>> cycles = new ArrayList<>();
+        int size = nodes.length;
+
+        // Adjacency in CSR form: outgoing edges of node v are edges[first[v]] .. edges[first[v + 1] - 1].
+        int[] first = new int[size + 1];
+        for (DeviceNode node : nodes) {
+            first[node.index + 1] += node.getOutgoingEdges().size();
+        }
+        for (TransferState edge : extraEdges) {
+            first[graph.get(edge.transfer.getSourceDeviceId()).index + 1]++;
+        }
+        for (int v = 0; v < size; v++) {
+            first[v + 1] += first[v];
+        }
+        int edgeCount = first[size];
+        TransferState[] edges = new TransferState[edgeCount];
+        int[] target = new int[edgeCount];
+        int[] filled = Arrays.copyOf(first, size);
+        for (DeviceNode node : nodes) {
+            for (TransferState edge : node.getOutgoingEdges()) {
+                edges[filled[node.index]++] = edge;
+            }
+        }
+        for (TransferState edge : extraEdges) {
+            edges[filled[graph.get(edge.transfer.getSourceDeviceId()).index]++] = edge;
+        }
+        for (int e = 0; e < edgeCount; e++) {
+            target[e] = graph.get(edges[e].transfer.getDestinationDeviceId()).index;
+        }
+
+        int[] component = stronglyConnectedComponents(first, target);
+        boolean[] used = new boolean[size];
+        boolean[] onPath = new boolean[size];
+        int[] pathNodes = new int[size];
+        int[] pathEdges = new int[size]; // Edge entering each node of the path.
+        int[] nextEdge = new int[size]; // Next outgoing edge of each node of the path to examine.
+        int[] traversed = new int[edgeCount]; // Edge has been taken by the current search, if traversed[e] == search.
+        int search = 0;
+
+        for (TransferState closing : closingEdges) {
+            int source = graph.get(closing.transfer.getSourceDeviceId()).index;
+            int destination = graph.get(closing.transfer.getDestinationDeviceId()).index;
+            if (component[source] != component[destination] || used[source] || used[destination]) {
+                continue;
+            }
+
+            search++;
+            int depth = 0;
+            TransferState entering = closing;
+            pathNodes[0] = destination;
+            pathEdges[0] = -1;
+            nextEdge[destination] = first[destination];
+            onPath[destination] = true;
+            boolean found = false;
+            while (depth >= 0 && !found) {
+                int node = pathNodes[depth];
+                if (nextEdge[node] == first[node + 1]) {
+                    onPath[node] = false; // All edges examined, back to the previous node.
+                    depth--;
+                    entering = depth < 0 ? null : (depth == 0 ? closing : edges[pathEdges[depth]]);
+                    continue;
+                }
+                int e = nextEdge[node]++;
+                int neighbor = target[e];
+                if (traversed[e] == search || component[neighbor] != component[source] || used[neighbor]
+                        || !link.fits(entering, edges[e])) {
+                    continue;
+                }
+                if (neighbor == source) {
+                    found = link.fits(edges[e], closing);
+                    if (found) {
+                        pathEdges[++depth] = e;
                     }
+                } else if (!onPath[neighbor]) {
+                    traversed[e] = search; // Whatever the edge leads to is searched now, so it is not taken again.
+                    depth++;
+                    pathNodes[depth] = neighbor;
+                    pathEdges[depth] = e;
+                    nextEdge[neighbor] = first[neighbor];
+                    onPath[neighbor] = true;
+                    entering = edges[e];
                 }
             }
 
-            return cycleOfTransfers;
-        } else {
-            return new LinkedList<>();
+            for (int i = 0; i < size; i++) {
+                onPath[i] = false;
+            }
+            if (found) {
+                ArrayList<TransferState> cycle = new ArrayList<>(depth + 1);
+                cycle.add(closing);
+                used[source] = true;
+                for (int i = 1; i <= depth; i++) {
+                    cycle.add(edges[pathEdges[i]]);
+                    used[pathNodes[i - 1]] = true;
+                }
+                cycles.add(cycle);
+            }
         }
+        return cycles;
     }
 
     /*
-     * Depth-first search algorithm.
-     * RETURNS TRUE IF THERE IS A CYCLE, FALSE OTHERWISE.
-     * SIDE EFFECT: if there is a cycle, "deviceNodesCycle" list is filled with nodes that form a cycle.
+     * Tarjan's algorithm with an explicit stack, on the adjacency in CSR form.
+     * OUTPUT: Index of the strongly connected component of each node.
      */
-    private boolean dfs(DeviceNode start, LinkedList<DeviceNode> deviceNodesCycle) {
-        HashMap<DeviceNode, Boolean> visited = new HashMap<>();
-        HashMap<DeviceNode, DeviceNode> parent = new HashMap<>();
-        LinkedList<DeviceNode> stack = new LinkedList<>();
-
-        stack.push(start);
-
-        while (!stack.isEmpty()) {
-            DeviceNode node = stack.pop();
-
-            if (visited.getOrDefault(node, false)) {
-                DeviceNode current = node;
-                do {
-                    deviceNodesCycle.addFirst(current);
-                    current = parent.get(current);
-                } while (current != null && !current.equals(node));
-                return true;
+    private static int[] stronglyConnectedComponents(int[] first, int[] target) {
+        int size = first.length - 1;
+        int[] index = new int[size]; // Order of discovery + 1, 0 if not discovered yet.
+        int[] lowLink = new int[size];
+        int[] component = new int[size];
+        boolean[] onStack = new boolean[size];
+        int[] stack = new int[size]; // Nodes of components not assigned yet.
+        int[] callStack = new int[size]; // Nodes of the depth-first search.
+        int[] nextEdge = new int[size];
+        int stackSize = 0;
+        int discovered = 0;
+        int components = 0;
+
+        for (int root = 0; root < size; root++) {
+            if (index[root] != 0) {
+                continue;
             }
+            int depth = 0;
+            callStack[0] = root;
+            index[root] = lowLink[root] = ++discovered;
+            nextEdge[root] = first[root];
+            stack[stackSize++] = root;
+            onStack[root] = true;
 
-            visited.put(node, true);
+            while (depth >= 0) {
+                int node = callStack[depth];
+                if (nextEdge[node] < first[node + 1]) {
+                    int neighbor = target[nextEdge[node]++];
+                    if (index[neighbor] == 0) {
+                        index[neighbor] = lowLink[neighbor] = ++discovered;
+                        nextEdge[neighbor] = first[neighbor];
+                        stack[stackSize++] = neighbor;
+                        onStack[neighbor] = true;
+                        callStack[++depth] = neighbor;
+                    } else if (onStack[neighbor]) {
+                        lowLink[node] = Math.min(lowLink[node], index[neighbor]);
+                    }
+                    continue;
+                }
 
-            for (ComponentTransfer edge : node.getOutgoingEdges()) {
-                DeviceNode neighbor = node.getEdgeDestination(edge);
-                if (!visited.getOrDefault(neighbor, false)) {
-                    parent.put(neighbor, node);
-                    stack.push(neighbor);
-                } else if (neighbor == start) {
-                    DeviceNode current = node;
+                // All edges of the node are examined: it is either a root of a component or it returns its lowLink.
+                if (lowLink[node] == index[node]) {
+                    int member;
                     do {
-                        deviceNodesCycle.addFirst(current);
-                        current = parent.get(current);
-                    } while (!current.equals(start));
-                    deviceNodesCycle.addFirst(start);
-                    return true;
+                        member = stack[--stackSize];
+                        onStack[member] = false;
+                        component[member] = components;
+                    } while (member != node);
+                    components++;
+                }
+                depth--;
+                if (depth >= 0) {
+                    int parent = callStack[depth];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                }
+            }
+        }
+        return component;
+    }
+
+    // Starts a new search, so that nodes visited by the previous ones are not visited anymore.
+    private void newSearch() {
+        if (searchId == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            searchId = 0;
+        }
+        searchId++;
+    }
+
+    /*
+     * Depth-first search following outgoing edges, visiting only nodes with order not greater than upperBound.
+     * RETURNS -1 IF TARGET IS REACHED (THERE IS A CYCLE), NUMBER OF VISITED NODES OTHERWISE.
+     * SIDE EFFECT: visited nodes are stored in "forward" buffer, edges used to reach them in "parentEdge" buffer.
+     */
+    private int searchForward(DeviceNode start, DeviceNode target, int upperBound) {
+        newSearch();
+        int stackSize = 0;
+        int visitedSize = 0;
+
+        visited[start.index] = searchId;
+        stack[stackSize++] = start.index;
+
+        while (stackSize > 0) {
+            DeviceNode node = nodes[stack[--stackSize]];
+            forward[visitedSize++] = node.index;
+
+            for (TransferState edge : node.getOutgoingEdges()) {
+                DeviceNode neighbor = node.getEdgeDestination(edge);
+                if (visited[neighbor.index] != searchId && order[neighbor.index] <= upperBound) {
+                    visited[neighbor.index] = searchId;
+                    parentEdge[neighbor.index] = edge;
+                    if (neighbor == target) {
+                        return -1;
+                    }
+                    stack[stackSize++] = neighbor.index;
                 }
             }
         }
 
-        return false;
+        return visitedSize;
     }
 
+    /*
+     * Depth-first search following incoming edges, visiting only nodes with order greater than lowerBound.
+     * RETURNS NUMBER OF VISITED NODES.
+     * SIDE EFFECT: visited nodes are stored in "backward" buffer.
+     */
+    private int searchBackward(DeviceNode start, int lowerBound) {
+        newSearch();
+        int stackSize = 0;
+        int visitedSize = 0;
+
+        visited[start.index] = searchId;
+        stack[stackSize++] = start.index;
+
+        while (stackSize > 0) {
+            DeviceNode node = nodes[stack[--stackSize]];
+            backward[visitedSize++] = node.index;
+
+            for (TransferState edge : node.getIncomingEdges()) {
+                DeviceNode neighbor = node.getEdgeSource(edge);
+                if (visited[neighbor.index] != searchId && order[neighbor.index] > lowerBound) {
+                    visited[neighbor.index] = searchId;
+                    stack[stackSize++] = neighbor.index;
+                }
+            }
+        }
+
+        return visitedSize;
+    }
+
+    /*
+     * Nodes reaching the source of a new edge are moved before nodes reachable from its destination.
+     * Both groups keep their relative order and together they take the same positions as before.
+     */
+    private void reorder(int forwardSize, int backwardSize) {
+        // Replace nodes with their positions and sort them, so that relative order within each group is kept.
+        for (int i = 0; i < backwardSize; i++) {
+            backward[i] = order[backward[i]];
+        }
+        for (int i = 0; i < forwardSize; i++) {
+            forward[i] = order[forward[i]];
+        }
+        Arrays.sort(backward, 0, backwardSize);
+        Arrays.sort(forward, 0, forwardSize);
+
+        // Merge positions of both groups.
+        int b = 0, f = 0;
+        for (int i = 0; i < backwardSize + forwardSize; i++) {
+            if (f == forwardSize || (b < backwardSize && backward[b] < forward[f])) {
+                positions[i] = backward[b++];
+            } else {
+                positions[i] = forward[f++];
+            }
+        }
+
+        // Replace positions back with nodes.
+        for (int i = 0; i < backwardSize; i++) {
+            backward[i] = orderedNodes[backward[i]];
+        }
+        for (int i = 0; i < forwardSize; i++) {
+            forward[i] = orderedNodes[forward[i]];
+        }
+
+        // Backward nodes take the first positions, forward nodes the remaining ones.
+        for (int i = 0; i < backwardSize + forwardSize; i++) {
+            int node = i < backwardSize ? backward[i] : forward[i - backwardSize];
+            order[node] = positions[i];
+            orderedNodes[positions[i]] = node;
+        }
+    }
 
 }
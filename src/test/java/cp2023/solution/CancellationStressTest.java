@@ -0,0 +1,325 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.ComponentAlreadyExists;
+import cp2023.exceptions.ComponentDoesNotExist;
+import cp2023.exceptions.ComponentIsBeingOperatedOn;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Transfers withdrawn by timeouts (execute(transfer, timeout), orTimeout()) and by cancellation, while other
+ * transfers are admitted to the same devices. There are more components than slots, so most transfers wait. When
+ * all threads have ended, no slot, queue entry or edge of the graph of transfers may be left behind, and every
+ * component has to be placed on exactly one device - the one, to which its last executed transfer has moved it.
+ */
+class CancellationStressTest {
+
+    private static final int DEVICES = 4;
+    private static final int SLOTS = 3;
+    private static final int THREADS = 8;
+    private static final int COMPONENTS_PER_THREAD = 2;
+    private static final int OPERATIONS = 1000;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static final int IN_TRANSIT = -1;
+
+    private final AtomicInteger[] usedSlots = new AtomicInteger[DEVICES]; // Slots taken, as seen by transfers.
+    private final ConcurrentHashMap<ComponentId, Integer> whereIs = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+
+    // Transfer checking, that its component is on exactly one device, and that devices are never overfilled.
+    private final class Transfer implements ComponentTransfer {
+        private final ComponentId component;
+        private final int source; // -1 for ADD.
+        private final int destination; // -1 for REMOVE.
+        private final CompletableFuture<Void> performed = new CompletableFuture<>();
+        private volatile boolean prepared = false;
+
+        private Transfer(ComponentId component, int source, int destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return component;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source < 0 ? null : new DeviceId(source);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination < 0 ? null : new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+            if (prepared) {
+                errors.add("prepare() called twice for " + component);
+            }
+            prepared = true;
+            boolean left = source < 0 ? whereIs.putIfAbsent(component, IN_TRANSIT) == null
+                    : whereIs.replace(component, source, IN_TRANSIT);
+            if (!left) {
+                errors.add(component + " is not on device " + source + " but on " + whereIs.get(component));
+            }
+            if (source >= 0) {
+                usedSlots[source].decrementAndGet();
+            }
+        }
+
+        @Override
+        public void perform() {
+            if (!prepared || performed.isDone()) {
+                errors.add("perform() called out of order for " + component);
+            }
+            boolean arrived = destination < 0 ? whereIs.remove(component, IN_TRANSIT)
+                    : whereIs.replace(component, IN_TRANSIT, destination);
+            if (!arrived) {
+                errors.add(component + " has not left its device, but arrived on " + destination);
+            }
+            if (destination >= 0 && usedSlots[destination].incrementAndGet() > SLOTS) {
+                errors.add("Device " + destination + " is overfilled.");
+            }
+            performed.complete(null);
+        }
+    }
+
+    /*
+     * Component of a thread. Its last transfer executed asynchronously may still be running, or may have been
+     * withdrawn, if its stage has been cancelled - then the component is still on its device.
+     */
+    private static final class Component {
+        private final ComponentId id;
+        private int device; // -1 if not placed on any device.
+        private Transfer pending;
+
+        private Component(ComponentId id, int device) {
+            this.id = id;
+            this.device = device;
+        }
+
+        /*
+         * Device of the component after its pending transfer, if the transfer has called perform(). The transfer
+         * may still be ending then, so it stays pending, until another transfer of the component is admitted.
+         */
+        private int device() {
+            return pending != null && pending.performed.isDone() ? pending.destination : device;
+        }
+
+        // Another transfer of the component has been admitted, so the pending one has ended or has been withdrawn.
+        private void executed(Transfer transfer, boolean performed) {
+            device = performed ? transfer.destination : device();
+            pending = null;
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ConcurrencyMode.class)
+    void withdrawnTransfersLeaveNothingBehind(ConcurrencyMode mode) throws Exception {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        for (int device = 0; device < DEVICES; device++) {
+            deviceTotalSlots.put(new DeviceId(device), SLOTS);
+            usedSlots[device] = new AtomicInteger(0);
+        }
+        List<List<Component>> components = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            List<Component> owned = new ArrayList<>();
+            for (int i = 0; i < COMPONENTS_PER_THREAD; i++) {
+                int number = thread * COMPONENTS_PER_THREAD + i;
+                int device = number % DEVICES;
+                ComponentId id = new ComponentId(number);
+                if (usedSlots[device].get() < SLOTS) {
+                    usedSlots[device].incrementAndGet();
+                    whereIs.put(id, device);
+                    componentPlacement.put(id, new DeviceId(device));
+                    owned.add(new Component(id, device));
+                } else {
+                    owned.add(new Component(id, -1));
+                }
+            }
+            components.add(owned);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            StorageSystemImplementation system =
+                    StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, mode, executor);
+            List<Thread> threads = new ArrayList<>();
+            for (List<Component> owned : components) {
+                threads.add(Thread.ofPlatform().start(() -> transferRandomly(system, owned)));
+            }
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+                if (thread.isAlive()) {
+                    fail("Transfers have not ended in " + TIMEOUT_SECONDS + " seconds.");
+                }
+            }
+            assertTrue(errors.isEmpty(), () -> String.join("\n", errors));
+
+            Map<ComponentId, DeviceId> expected = new HashMap<>();
+            int[] expectedSlots = new int[DEVICES];
+            for (List<Component> owned : components) {
+                for (Component component : owned) {
+                    int device = component.device();
+                    if (device >= 0) {
+                        expected.put(component.id, new DeviceId(device));
+                        expectedSlots[device]++;
+                    }
+                    assertEquals(device < 0 ? null : device, whereIs.get(component.id),
+                            "Physical placement of " + component.id);
+                }
+            }
+            assertEquals(expected, system.snapshot().getPlacement());
+            for (int device = 0; device < DEVICES; device++) {
+                DeviceId id = new DeviceId(device);
+                assertEquals(expectedSlots[device], system.occupancy(id), "Occupancy of " + id);
+                assertEquals(expectedSlots[device], usedSlots[device].get(), "Slots used on " + id);
+                assertEquals(0, system.queueDepth(id), "Queue depth of " + id);
+            }
+            assertEquals(0, system.waitingMoves(), "Edges of the graph of transfers");
+
+            // Every component has been released: all of them can be removed, which frees all slots.
+            for (List<Component> owned : components) {
+                for (Component component : owned) {
+                    if (component.device >= 0) {
+                        system.execute(new Transfer(component.id, component.device, -1));
+                    }
+                }
+            }
+            for (int device = 0; device < DEVICES; device++) {
+                assertEquals(0, system.occupancy(new DeviceId(device)));
+            }
+            assertTrue(errors.isEmpty(), () -> String.join("\n", errors));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Executes random transfers of the components, most of which are withdrawn before they get their space. In the
+     * end, every component is transferred once more without waiting, so that its pending transfer has ended.
+     */
+    private void transferRandomly(StorageSystemImplementation system, List<Component> owned) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int operation = 0; operation < OPERATIONS && errors.isEmpty(); operation++) {
+            Component component = owned.get(random.nextInt(owned.size()));
+            transfer(system, component, random, random.nextInt(4));
+        }
+        for (Component component : owned) {
+            while (component.pending != null && errors.isEmpty()) {
+                transfer(system, component, random, -1);
+            }
+        }
+    }
+
+    /*
+     * Executes a random transfer of the component: with a short timeout (kind 0), with a longer one (1), cancelled
+     * right after admission (2), timed out by orTimeout() (3) or without waiting at all (-1). Transfer is retried,
+     * while the pending transfer of the component has not ended yet.
+     */
+    private void transfer(StorageSystemImplementation system, Component component, ThreadLocalRandom random,
+                          int kind) {
+        while (true) {
+            int source = component.device();
+            int destination;
+            if (source < 0) {
+                destination = random.nextInt(DEVICES);
+            } else if (random.nextInt(10) == 0) {
+                destination = -1;
+            } else {
+                destination = (source + 1 + random.nextInt(DEVICES - 1)) % DEVICES;
+            }
+            Transfer transfer = new Transfer(component.id, source, destination);
+            try {
+                switch (kind) {
+                    case 0 -> component.executed(transfer,
+                            system.execute(transfer, Duration.ofNanos(random.nextInt(200_000))));
+                    case 1 -> component.executed(transfer, system.execute(transfer, Duration.ofMillis(20)));
+                    case 2 -> {
+                        CompletableFuture<Void> outcome = executeAsync(system, transfer);
+                        component.executed(transfer, false);
+                        component.pending = transfer;
+                        outcome.cancel(false);
+                        awaitQuietly(outcome);
+                    }
+                    case 3 -> {
+                        CompletableFuture<Void> outcome = executeAsync(system, transfer);
+                        component.executed(transfer, false);
+                        component.pending = transfer;
+                        awaitQuietly(outcome.orTimeout(random.nextInt(1, 3), TimeUnit.MILLISECONDS));
+                    }
+                    default -> component.executed(transfer, system.execute(transfer, Duration.ZERO));
+                }
+                return;
+            } catch (ComponentIsBeingOperatedOn | ComponentDoesNotExist | ComponentAlreadyExists e) {
+                if (component.pending == null || !errors.isEmpty()) {
+                    errors.add("Unexpected " + e);
+                    return;
+                }
+                Thread.yield(); // Pending transfer of the component has not ended yet.
+            } catch (TransferException e) {
+                errors.add("Unexpected " + e);
+                return;
+            }
+        }
+    }
+
+    // Executes the transfer asynchronously. Throws TransferException, if the transfer has not been admitted.
+    private static CompletableFuture<Void> executeAsync(StorageSystemImplementation system, Transfer transfer)
+            throws TransferException {
+        CompletableFuture<Void> outcome = system.executeAsync(transfer).toCompletableFuture();
+        if (outcome.state() == Future.State.FAILED && outcome.exceptionNow() instanceof TransferException e) {
+            throw e;
+        }
+        return outcome;
+    }
+
+    private static void awaitQuietly(CompletableFuture<Void> outcome) {
+        try {
+            outcome.join();
+        } catch (CancellationException | CompletionException e) {
+            // Transfer has been withdrawn, or is still running and its end is awaited by the next transfer.
+        }
+    }
+
+}
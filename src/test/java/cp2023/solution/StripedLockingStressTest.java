@@ -0,0 +1,285 @@
+/*
+ * University of Warsaw
+ * Concurrent Programming Course 2023/2024
+ * Java Assignment
+ *
+ * Authors: Karol Szwed (ks430171@students.mimuw.edu.pl)
+ */
+package cp2023.solution;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemImplementation.ConcurrencyMode;
+
+/*
+ * Bookkeeping of transfers under stress: slots handed over by leaving transfers to waiting ones, chains of transfers
+ * waiting for each other and cycles of MOVE transfers on full devices. Devices are never overfilled, every transfer
+ * ends, and when all of them have ended, taken slots match placed components, and no queue entry or edge of the graph
+ * of transfers is left behind.
+ */
+class StripedLockingStressTest {
+
+    private static final int DEVICES = 4;
+    private static final int SLOTS = 2;
+    private static final int THREADS = DEVICES * SLOTS; // Cycles on full devices need a thread for every component.
+    private static final int ROUNDS = 300;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static final int IN_TRANSIT = -1;
+
+    private final AtomicInteger[] usedSlots = new AtomicInteger[DEVICES]; // Slots taken, as seen by transfers.
+    private final ConcurrentHashMap<ComponentId, Integer> whereIs = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+
+    // Transfer checking, that its component is on exactly one device, and that devices are never overfilled.
+    private final class Transfer implements ComponentTransfer {
+        private final ComponentId component;
+        private final int source; // -1 for ADD.
+        private final int destination; // -1 for REMOVE.
+        private boolean prepared = false;
+        private boolean performed = false;
+
+        private Transfer(ComponentId component, int source, int destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return component;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source < 0 ? null : new DeviceId(source);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination < 0 ? null : new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+            if (prepared) {
+                errors.add("prepare() called twice for " + component);
+            }
+            prepared = true;
+            boolean left = source < 0 ? whereIs.putIfAbsent(component, IN_TRANSIT) == null
+                    : whereIs.replace(component, source, IN_TRANSIT);
+            if (!left) {
+                errors.add(component + " is not on device " + source + " but on " + whereIs.get(component));
+            }
+            if (source >= 0) {
+                usedSlots[source].decrementAndGet();
+            }
+            if (ThreadLocalRandom.current().nextInt(4) == 0) {
+                Thread.yield(); // Transfers waiting for the slot attach to this one meanwhile.
+            }
+        }
+
+        @Override
+        public void perform() {
+            if (!prepared || performed) {
+                errors.add("perform() called out of order for " + component);
+            }
+            performed = true;
+            boolean arrived = destination < 0 ? whereIs.remove(component, IN_TRANSIT)
+                    : whereIs.replace(component, IN_TRANSIT, destination);
+            if (!arrived) {
+                errors.add(component + " has not left its device, but arrived on " + destination);
+            }
+            if (destination >= 0 && usedSlots[destination].incrementAndGet() > SLOTS) {
+                errors.add("Device " + destination + " is overfilled.");
+            }
+        }
+    }
+
+    private StorageSystemImplementation newSystem(ConcurrencyMode mode, int[] placement) {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        for (int device = 0; device < DEVICES; device++) {
+            deviceTotalSlots.put(new DeviceId(device), SLOTS);
+            usedSlots[device] = new AtomicInteger(0);
+        }
+        for (int component = 0; component < placement.length; component++) {
+            if (placement[component] >= 0) {
+                usedSlots[placement[component]].incrementAndGet();
+                whereIs.put(new ComponentId(component), placement[component]);
+                componentPlacement.put(new ComponentId(component), new DeviceId(placement[component]));
+            }
+        }
+        return StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, mode);
+    }
+
+    private void execute(StorageSystemImplementation system, int component, int source, int destination) {
+        Transfer transfer = new Transfer(new ComponentId(component), source, destination);
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            errors.add("Unexpected " + e);
+        }
+        if (!transfer.performed) {
+            errors.add("Transfer of " + transfer.component + " has not been performed.");
+        }
+    }
+
+    // Runs the work in THREADS threads, each with its number, and waits for all of them.
+    private void runThreads(IntConsumer work) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            int number = thread;
+            threads.add(Thread.ofPlatform().start(() -> work.accept(number)));
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            if (thread.isAlive()) {
+                fail("Transfers have not ended in " + TIMEOUT_SECONDS + " seconds.");
+            }
+        }
+        assertTrue(errors.isEmpty(), () -> String.join("\n", errors));
+    }
+
+    // Checks, that the system agrees with the placement of components, and that no transfer is left behind.
+    private void assertConsistent(StorageSystemImplementation system, int[] placement) {
+        Map<ComponentId, DeviceId> expected = new HashMap<>();
+        int[] expectedSlots = new int[DEVICES];
+        for (int component = 0; component < placement.length; component++) {
+            ComponentId id = new ComponentId(component);
+            if (placement[component] >= 0) {
+                expected.put(id, new DeviceId(placement[component]));
+                expectedSlots[placement[component]]++;
+            }
+            assertEquals(placement[component] < 0 ? null : placement[component], whereIs.get(id),
+                    "Physical placement of " + id);
+        }
+        assertEquals(expected, system.snapshot().getPlacement());
+        for (int device = 0; device < DEVICES; device++) {
+            DeviceId id = new DeviceId(device);
+            assertEquals(expectedSlots[device], system.occupancy(id), "Occupancy of " + id);
+            assertEquals(expectedSlots[device], usedSlots[device].get(), "Slots used on " + id);
+            assertEquals(0, system.queueDepth(id), "Queue depth of " + id);
+        }
+        assertEquals(0, system.waitingMoves(), "Edges of the graph of transfers");
+    }
+
+    /*
+     * All devices are full. In every round, components of each device move to another device chosen by a random
+     * permutation of devices without fixed points, so transfers can only be executed in cycles.
+     */
+    @ParameterizedTest
+    @EnumSource(ConcurrencyMode.class)
+    void cyclesOnFullDevices(ConcurrencyMode mode) throws Exception {
+        int[] placement = new int[DEVICES * SLOTS];
+        for (int component = 0; component < placement.length; component++) {
+            placement[component] = component % DEVICES;
+        }
+        StorageSystemImplementation system = newSystem(mode, placement);
+
+        Random random = new Random(2023);
+        int[][] permutations = new int[ROUNDS][DEVICES];
+        for (int[] permutation : permutations) {
+            List<Integer> order = new ArrayList<>();
+            for (int device = 0; device < DEVICES; device++) {
+                order.add(device);
+            }
+            Collections.shuffle(order, random);
+            int shift = 1 + random.nextInt(DEVICES - 1);
+            for (int i = 0; i < DEVICES; i++) {
+                permutation[order.get(i)] = order.get((i + shift) % DEVICES);
+            }
+        }
+
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        runThreads(thread -> {
+            for (int[] permutation : permutations) {
+                try {
+                    barrier.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    errors.add("Round has not started: " + e);
+                    return;
+                }
+                for (int component = thread; component < placement.length; component += THREADS) {
+                    int source = placement[component];
+                    execute(system, component, source, permutation[source]);
+                    placement[component] = permutation[source];
+                }
+            }
+        });
+        assertConsistent(system, placement);
+    }
+
+    /*
+     * Devices are half full. Components are moved, added and removed at random, to devices with a slot planned for
+     * them, so transfers wait for slots of leaving transfers and form chains, but never wait forever.
+     */
+    @ParameterizedTest
+    @EnumSource(ConcurrencyMode.class)
+    void chainsOnHalfFullDevices(ConcurrencyMode mode) throws Exception {
+        int[] placement = new int[2 * DEVICES * SLOTS];
+        AtomicInteger[] planned = new AtomicInteger[DEVICES]; // Slots taken after transfers being executed.
+        for (int device = 0; device < DEVICES; device++) {
+            planned[device] = new AtomicInteger(0);
+        }
+        for (int component = 0; component < placement.length; component++) {
+            placement[component] = component % 4 == 0 ? (component / 4) % DEVICES : -1;
+            if (placement[component] >= 0) {
+                planned[placement[component]].incrementAndGet();
+            }
+        }
+        StorageSystemImplementation system = newSystem(mode, placement);
+
+        runThreads(thread -> {
+            Random random = new Random(thread);
+            for (int operation = 0; operation < ROUNDS * 4 && errors.isEmpty(); operation++) {
+                int component = thread + THREADS * random.nextInt(placement.length / THREADS);
+                int source = placement[component];
+                int destination = -1;
+                if (source < 0 || random.nextInt(5) != 0) {
+                    int start = random.nextInt(DEVICES);
+                    for (int i = 0; i < DEVICES && destination < 0; i++) {
+                        int device = (start + i) % DEVICES;
+                        int slots = planned[device].get();
+                        if (device != source && slots < SLOTS && planned[device].compareAndSet(slots, slots + 1)) {
+                            destination = device;
+                        }
+                    }
+                }
+                if (destination < 0 && source < 0) {
+                    continue;
+                }
+                execute(system, component, source, destination);
+                if (source >= 0) {
+                    planned[source].decrementAndGet(); // Slot is free again, once the component has left.
+                }
+                placement[component] = destination;
+            }
+        });
+        assertConsistent(system, placement);
+    }
+
+}